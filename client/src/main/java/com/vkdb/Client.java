@@ -3,38 +3,104 @@ package com.vkdb;
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
+/*
+ * Client [<HOST>:<PORT> [<REPLICA HOST>:<PORT> ...]]
+ *
+ * given replicas too, the reads go to them in turn and everything else to the first server, the master. LOGIN and
+ * MAXLAG go to every server and only the master's reply is shown. A read a replica refuses for being further behind
+ * than the MAXLAG, or a read still waiting on a replica that went away, is sent to the master instead
+ */
 public class Client {
     private static final Logger logger = Logger.getLogger(Client.class.getName());
+    private static final Set<String> READS = Set.of("GET", "MGET", "SCAN", "KEYS", "ALL");
+    private static final Set<String> EVERYWHERE = Set.of("LOGIN", "MAXLAG", "DISCONNECT");
+    private static final ReentrantLock console = new ReentrantLock();
+
+    // a command sent to a replica, replies come back in order so the oldest one is what the next reply is for
+    private record Pending(String command, boolean shown) {
+    }
+
+    private static class Connection {
+        private final String address;
+        private final Socket socket;
+        private final DataInputStream in;
+        private final DataOutputStream out;
+        private final ReentrantLock lock = new ReentrantLock();     // the writer and the replicas' readers both send
+        private final ConcurrentLinkedQueue<Pending> pending = new ConcurrentLinkedQueue<>();
+        private volatile boolean closed = false;
+
+        private Connection(String address) throws IOException {
+            int colon = address.lastIndexOf(':');
+            this.address = address;
+            this.socket = new Socket(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+            this.in = new DataInputStream(socket.getInputStream());
+            this.out = new DataOutputStream(socket.getOutputStream());
+        }
+
+        private void send(String command) throws IOException {
+            lock.lock();
+            try {
+                out.writeUTF(command);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // for a replica, remembers what the reply will be for
+        private void request(String command, boolean shown) throws IOException {
+            lock.lock();
+            try {
+                pending.add(new Pending(command, shown));
+                out.writeUTF(command);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private void close() {
+            closed = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // already gone
+            }
+        }
+    }
 
     public static void main(String[] args) {
         try {
-            String host = "localhost";
-            int port = 6969;
+            Connection master = new Connection(args.length > 0 ? args[0] : "localhost:6969");
+            logger.info("Connected to host : " + master.address);
 
-            Socket socket = new Socket(host, port);
-            logger.info("Connected to host : " + host + ":" + port);
+            List<Connection> replicas = new ArrayList<>();
+            for (int i = 1; i < args.length; i++) {
+                try {
+                    Connection replica = new Connection(args[i]);
+                    replicas.add(replica);
+                    Thread.startVirtualThread(() -> readReplica(replica, master));
+                    logger.info("Reading from replica : " + replica.address);
+                } catch (IOException e) {
+                    logger.warning("Replica " + args[i] + " not connected : " + e.getLocalizedMessage());
+                }
+            }
 
             Scanner scanner = new Scanner(System.in);
 
-            DataInputStream di = new DataInputStream(socket.getInputStream());
-            DataOutputStream dou = new DataOutputStream(socket.getOutputStream());
-
-
             Thread readerThread = Thread.startVirtualThread(() -> {
                 // reader thread
                 label:
                 while (true) {
                     try {
-                        String response = di.readUTF();
-
-                        // Clear the current line and print the response
-                        System.out.print("\r                                         \r");  // Clear line
-                        System.out.println(response);
-                        // Reprint the prompt
-                        System.out.print("vkdb> ");
+                        String response = master.in.readUTF();
+                        show(response);
 
                         switch (response) {
                             case "BYE": {
@@ -54,9 +120,8 @@ public class Client {
                 }
 
                 try {
-                    socket.close();
-                    di.close();
-                    dou.close();
+                    master.close();
+                    replicas.forEach(Connection::close);
                     System.exit(0); // exiting the program
                 } catch (Exception e) {
                     logger.warning(e.getLocalizedMessage());
@@ -66,12 +131,23 @@ public class Client {
             Thread writerThread = Thread.startVirtualThread(() -> {
                 try {
                     String inputLine;
+                    int next = 0;   // the replica the next read goes to
 
                     while (true) {
                         System.out.print("vkdb> ");
                         inputLine = scanner.nextLine();
                         if (inputLine != null && !inputLine.isEmpty()) {
-                            dou.writeUTF(inputLine);
+                            String command = inputLine.trim().split(" ", 2)[0].toUpperCase();
+                            List<Connection> live = replicas.stream().filter(replica -> !replica.closed).toList();
+                            if (READS.contains(command) && !live.isEmpty()) {
+                                Connection replica = live.get(next++ % live.size());
+                                if (!tryRequest(replica, inputLine, true)) master.send(inputLine);
+                            } else {
+                                master.send(inputLine);
+                                if (EVERYWHERE.contains(command)) {
+                                    for (Connection replica : live) tryRequest(replica, inputLine, false);
+                                }
+                            }
                             // If the command is to disconnect, break the loop
                             if (inputLine.equalsIgnoreCase("DISCONNECT")) {
                                 break;
@@ -93,4 +169,61 @@ public class Client {
             e.printStackTrace();
         }
     }
+
+    private static boolean tryRequest(Connection replica, String command, boolean shown) {
+        try {
+            replica.request(command, shown);
+            return true;
+        } catch (IOException e) {
+            logger.warning("Lost replica " + replica.address + " : " + e.getLocalizedMessage());
+            replica.close();
+            return false;
+        }
+    }
+
+    // shows the replies to the reads, the ones to commands that also went to the master are dropped
+    private static void readReplica(Connection replica, Connection master) {
+        try {
+            while (true) {
+                String response = replica.in.readUTF();
+                if (response.endsWith("\n")) {
+                    show(response);     // a chunk of a listing, more of it follows
+                    continue;
+                }
+                Pending pending = replica.pending.poll();
+                if (pending == null || !pending.shown()) continue;
+                if (response.startsWith("ERROR STALE")) {
+                    logger.info("Replica " + replica.address + " is behind, reading from the master");
+                    master.send(pending.command());
+                    continue;
+                }
+                show(response);
+            }
+        } catch (IOException e) {
+            if (!replica.closed) logger.warning("Replica " + replica.address + " closed the connection");
+        }
+        replica.close();
+        // the reads it didn't answer are asked again at the master
+        for (Pending pending : replica.pending) {
+            if (!pending.shown()) continue;
+            try {
+                master.send(pending.command());
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private static void show(String response) {
+        console.lock();
+        try {
+            // Clear the current line and print the response
+            System.out.print("\r                                         \r");  // Clear line
+            System.out.println(response);
+            // Reprint the prompt
+            System.out.print("vkdb> ");
+        } finally {
+            console.unlock();
+        }
+    }
 }
@@ -0,0 +1,264 @@
+package com.vkdb.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Logger;
+
+public class AofWriter implements Runnable {
+    private static final Logger logger = Logger.getLogger(AofWriter.class.getName());
+
+    public enum FsyncPolicy {
+        ALWAYS, EVERYSEC, NO;
+
+        public static FsyncPolicy parse(String value) {
+            return FsyncPolicy.valueOf(value.trim().toUpperCase());
+        }
+    }
+
+    // queued by flush and carried out by the writer thread, which is the only one touching the batch
+    private static final class FlushRequest extends SaveItem {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile IOException failure;
+
+        private FlushRequest() {
+            super("", null, "F");
+        }
+    }
+
+    private final SegmentedLog log;
+    private final Store database;
+    private final BlockingQueue<SaveItem> diskWriteItems;
+    private final Lock lock;
+    private final FsyncPolicy fsyncPolicy;
+    private final ChangeLog changeLog;  // null unless changes are kept
+    private final List<SaveItem> batch = new ArrayList<>(Constants.DISK_WRITE_BATCH_SIZE);
+    private final Map<String, SaveItem> latestInBatch = new LinkedHashMap<>();
+    private final Set<String> writtenKeys = new HashSet<>();
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+    private FileChannel channel;
+    private long activeSegmentId;
+    private boolean dirty = false;
+    private long lastSyncTime = System.currentTimeMillis();
+    private volatile Thread writer;
+
+    public AofWriter(SegmentedLog log, Store database, BlockingQueue<SaveItem> diskWriteItems, Lock lock, FsyncPolicy fsyncPolicy, ChangeLog changeLog) {
+        this.log = log;
+        this.database = database;
+        this.diskWriteItems = diskWriteItems;
+        this.lock = lock;
+        this.fsyncPolicy = fsyncPolicy;
+        this.changeLog = changeLog;
+    }
+
+    @Override
+    public void run() {
+        logger.info("Append only log writer started with fsync policy " + fsyncPolicy);
+        writer = Thread.currentThread();
+        try {
+            while (true) {
+                // waiting at most a second so everysec can sync an idle but dirty file
+                SaveItem first = diskWriteItems.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    syncIfDue();
+                    if (changeLog != null) changeLog.expire();
+                    continue;
+                }
+
+                batch.add(first);
+                diskWriteItems.drainTo(batch, Constants.DISK_WRITE_BATCH_SIZE - 1);
+                List<FlushRequest> requests = takeFlushRequests();
+                try {
+                    if (!batch.isEmpty()) writeBatch();
+                    if (!requests.isEmpty()) {
+                        lock.lock();
+                        try {
+                            sync();
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                } catch (IOException e) {
+                    requests.forEach(request -> request.failure = e);
+                    throw e;
+                } finally {
+                    requests.forEach(request -> request.done.countDown());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            writer = null;
+        }
+    }
+
+    // writes whatever was queued before the call and forces it to disk. Called from the shutdown hook and by compaction,
+    // the writer thread does it while it runs, anyone else filling the batch would race it
+    public void flush() throws IOException {
+        Thread thread = writer;
+        if (thread == null || thread == Thread.currentThread()) {
+            flushQueue();
+            return;
+        }
+        FlushRequest request = new FlushRequest();
+        try {
+            diskWriteItems.put(request);
+            while (!request.done.await(1, TimeUnit.SECONDS)) {
+                if (!thread.isAlive()) break;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while flushing the append only log");
+        }
+        if (request.failure != null) throw request.failure;
+        if (request.done.getCount() > 0) flushQueue();     // the writer is gone, nobody else fills the batch now
+    }
+
+    private void flushQueue() throws IOException {
+        List<FlushRequest> requests = new ArrayList<>();
+        lock.lock();
+        try {
+            while (diskWriteItems.drainTo(batch, Constants.DISK_WRITE_BATCH_SIZE) > 0) {
+                requests.addAll(takeFlushRequests());
+                if (!batch.isEmpty()) writeBatchLocked();
+            }
+            if (channel != null && dirty) {
+                channel.force(false);
+                dirty = false;
+            }
+            if (changeLog != null) changeLog.force();
+        } finally {
+            lock.unlock();
+        }
+        requests.forEach(request -> request.done.countDown());
+    }
+
+    // seals the active segment and returns the id of the new one, the caller must hold the lock
+    public long roll() throws IOException {
+        if (channel != null) {
+            channel.force(false); // sealed segments are always fully on disk
+            channel.close();
+            channel = null;
+        }
+        dirty = false;
+        return log.roll().first();
+    }
+
+    private List<FlushRequest> takeFlushRequests() {
+        List<FlushRequest> requests = new ArrayList<>();
+        batch.removeIf(item -> item instanceof FlushRequest request && requests.add(request));
+        return requests;
+    }
+
+    private void writeBatch() throws IOException {
+        lock.lock();
+        try {
+            writeBatchLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeBatchLocked() throws IOException {
+        FileChannel fileChannel = openChannel();
+
+        // only the last write for a key in a batch matters, older ones are superseded. A batch record of a multi key
+        // command stays whole, the single writes before it are written out first so nothing moves across it
+        buffer.reset();
+        int records = 0;
+        for (SaveItem item : batch) {
+            if (item instanceof BatchItem batchItem) {
+                records += writeLatest() + 1;
+                buffer.writeBytes(LogRecord.encode(batchItem));
+                batchItem.getItems().forEach(inner -> writtenKeys.add(inner.getKey()));
+            } else {
+                latestInBatch.put(item.getKey(), item);
+            }
+        }
+        records += writeLatest();
+
+        ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+        while (bytes.hasRemaining()) {
+            fileChannel.write(bytes);
+        }
+        dirty = true;
+
+        // every item as it came, numbered, the superseded ones as well
+        if (changeLog != null) changeLog.append(batch);
+
+        // lets compaction know the sealed segments only hold older copies of these keys
+        for (String key : writtenKeys) {
+            database.markWritten(key, activeSegmentId);
+        }
+
+        if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+            sync();
+        } else {
+            syncIfDue();
+        }
+
+        logger.fine("Wrote " + records + " entries out of a batch of " + batch.size());
+        batch.clear();
+        writtenKeys.clear();
+
+        if (fileChannel.size() >= Constants.SEGMENT_SIZE) {
+            long next = roll();
+            logger.info("Active segment is full, rolled over to segment " + next);
+        }
+    }
+
+    private int writeLatest() {
+        for (SaveItem item : latestInBatch.values()) {
+            buffer.writeBytes(LogRecord.encode(item));
+        }
+        writtenKeys.addAll(latestInBatch.keySet());
+        int written = latestInBatch.size();
+        latestInBatch.clear();
+        return written;
+    }
+
+    private void syncIfDue() throws IOException {
+        if (fsyncPolicy != FsyncPolicy.EVERYSEC || !dirty) return;
+        if (System.currentTimeMillis() - lastSyncTime < 1000) return;
+
+        lock.lock();
+        try {
+            sync();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void sync() throws IOException {
+        if (channel != null && dirty) {
+            channel.force(false);
+        }
+        if (changeLog != null) changeLog.force();
+        dirty = false;
+        lastSyncTime = System.currentTimeMillis();
+    }
+
+    private FileChannel openChannel() throws IOException {
+        if (channel == null) {
+            SegmentedLog.Segment active = log.active();
+            channel = FileChannel.open(log.pathOf(active), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            activeSegmentId = active.first();
+        }
+        return channel;
+    }
+}
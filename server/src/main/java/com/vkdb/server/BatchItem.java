@@ -0,0 +1,17 @@
+package com.vkdb.server;
+
+import java.util.List;
+
+// The writes of one multi key command, they go to the append only log together as one batch record
+public class BatchItem extends SaveItem {
+    private final List<SaveItem> items;
+
+    public BatchItem(List<SaveItem> items) {
+        super("", null, "B");
+        this.items = items;
+    }
+
+    public List<SaveItem> getItems() {
+        return items;
+    }
+}
@@ -0,0 +1,137 @@
+package com.vkdb.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * The binary protocol a connection switches to after PROTOCOL BINARY
+ *
+ * frame   : payload length (4) | request id (4) | flags (1) | payload
+ * request : argument count (2) | arguments, each one type (1) | 's' length (4) and utf-8 bytes, or 'i' a long (8)
+ * reply   : status (1) | the reply text as one 's' argument
+ *
+ * listings like ALL come as several replies with the same id, all but the last one with the partial status
+ *
+ * a frame carries at most MAX_FRAME_SIZE bytes, bigger requests and replies are cut into frames flagged MORE and
+ * the last one without it, the frames of one message follow each other. Replies carry the id of their request,
+ * notifications the server sends on its own use id 0
+ */
+public class BinaryFrame {
+    public static final int PUSH_ID = 0;
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+    public static final byte STATUS_PUSH = 2;
+    public static final byte STATUS_PARTIAL = 3;    // a piece of a listing, more replies with the same id follow
+    private static final int HEADER_SIZE = 4 + 4 + 1;
+    private static final byte FLAG_MORE = 1;
+    private static final byte TYPE_STRING = 's';
+    private static final byte TYPE_LONG = 'i';
+
+    public record Request(int id, String[] args) {
+        public String command() {
+            return String.join(" ", args);
+        }
+    }
+
+    // blocks until a whole request arrived, its frames put together again
+    public static Request read(DataInputStream in) throws IOException {
+        int id;
+        byte[] payload = new byte[0];
+        int size = 0;
+        byte flags;
+        do {
+            int length = in.readInt();
+            id = in.readInt();
+            flags = in.readByte();
+            if (length < 0 || length > Constants.MAX_FRAME_SIZE || (long) size + length > Constants.MAX_REQUEST_SIZE) {
+                throw new ProtocolException("Frame of " + length + " bytes is too large");
+            }
+            if (size + length > payload.length) {
+                payload = Arrays.copyOf(payload, Math.max(size + length, payload.length * 2));
+            }
+            in.readFully(payload, size, length);
+            size += length;
+        } while ((flags & FLAG_MORE) != 0);
+
+        ByteBuffer buffer = ByteBuffer.wrap(payload, 0, size);
+        String[] args = new String[Short.toUnsignedInt(buffer.getShort())];
+        if (args.length == 0) throw new ProtocolException("Request " + id + " has no command");
+        for (int i = 0; i < args.length; i++) {
+            byte type = buffer.get();
+            args[i] = switch (type) {
+                case TYPE_STRING -> {
+                    int length = buffer.getInt();
+                    if (length < 0 || length > buffer.remaining()) {
+                        throw new ProtocolException("Argument of " + length + " bytes runs past request " + id);
+                    }
+                    String arg = new String(payload, buffer.position(), length, StandardCharsets.UTF_8);
+                    buffer.position(buffer.position() + length);
+                    yield arg;
+                }
+                case TYPE_LONG -> Long.toString(buffer.getLong());
+                default -> throw new ProtocolException("Unknown argument type " + type + " in request " + id);
+            };
+        }
+        return new Request(id, args);
+    }
+
+    // encoded in full first so the frames go out in one write, a notification can never land in the middle of a reply
+    public static void write(OutputStream out, int id, byte status, String reply) throws IOException {
+        out.write(encode(id, status, reply));
+    }
+
+    public static byte[] encode(int id, byte status, String reply) throws IOException {
+        byte[] text = reply.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(text.length + 6);
+        DataOutputStream data = new DataOutputStream(payload);
+        data.writeByte(status);
+        data.writeByte(TYPE_STRING);
+        data.writeInt(text.length);
+        data.write(text);
+
+        return frame(id, payload.toByteArray());
+    }
+
+    // a request the way a client sends it, the replication stream is made of these
+    public static byte[] encodeRequest(int id, String... args) {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream(64);
+        DataOutputStream data = new DataOutputStream(payload);
+        try {
+            data.writeShort(args.length);
+            for (String arg : args) {
+                byte[] bytes = arg.getBytes(StandardCharsets.UTF_8);
+                data.writeByte(TYPE_STRING);
+                data.writeInt(bytes.length);
+                data.write(bytes);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);     // never thrown by a byte array
+        }
+        return frame(id, payload.toByteArray());
+    }
+
+    private static byte[] frame(int id, byte[] body) {
+        int frames = Math.max(1, (body.length + Constants.MAX_FRAME_SIZE - 1) / Constants.MAX_FRAME_SIZE);
+        ByteBuffer buffer = ByteBuffer.allocate(body.length + frames * HEADER_SIZE);
+        for (int offset = 0, frame = 0; frame < frames; frame++) {
+            int length = Math.min(Constants.MAX_FRAME_SIZE, body.length - offset);
+            buffer.putInt(length)
+                    .putInt(id)
+                    .put(frame < frames - 1 ? FLAG_MORE : 0)
+                    .put(body, offset, length);
+            offset += length;
+        }
+        return buffer.array();
+    }
+
+    public static byte statusOf(Reply reply) {
+        return reply.error() ? STATUS_ERROR : STATUS_OK;
+    }
+}
@@ -0,0 +1,356 @@
+package com.vkdb.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/*
+ * Every write once more under a sequence number, for consumers reading the changes from an offset with CHANGES
+ *
+ * the append only log keeps only the last write of a key in a batch and compaction rewrites it, so it can't be read
+ * back as a history. The writer appends every item it takes to the change log too, as a change record holding the
+ * record it wrote and the item's sequence number, and syncs both together. The files are named after their first
+ * sequence number, one is sealed once it passes CHANGES_SEGMENT_SIZE and deleted once it wasn't written to for
+ * longer than the retention. Each file keeps a sparse index from sequence numbers to positions so a read from an
+ * offset only walks the last few kilobytes before it
+ */
+public class ChangeLog {
+    private static final Logger logger = Logger.getLogger(ChangeLog.class.getName());
+    private static final String FILE_PREFIX = "changes_";
+
+    public record Change(long sequence, SaveItem item) {
+    }
+
+    private static class Segment {
+        private final long first;
+        private final Path path;
+        private final ReentrantLock lock = new ReentrantLock();    // guards the index
+        private long[] sequences = new long[16];
+        private long[] positions = new long[16];
+        private int indexed = 0;
+        private boolean complete = false;   // indexed up to its written size, sealed files are indexed on first read
+        private volatile long size;     // written and readable, a reader never looks past it
+
+        private Segment(long first, Path path, long size) {
+            this.first = first;
+            this.path = path;
+            this.size = size;
+        }
+
+        // holding the lock
+        private void index(long sequence, long position) {
+            if (indexed > 0 && position - positions[indexed - 1] < Constants.CHANGES_INDEX_INTERVAL) return;
+            if (indexed == sequences.length) {
+                sequences = Arrays.copyOf(sequences, indexed * 2);
+                positions = Arrays.copyOf(positions, indexed * 2);
+            }
+            sequences[indexed] = sequence;
+            positions[indexed] = position;
+            indexed++;
+        }
+
+        // holding the lock, where to start reading for the given sequence number
+        private long positionOf(long sequence) {
+            long position = LogRecord.HEADER_SIZE;
+            for (int low = 0, high = indexed - 1; low <= high; ) {
+                int middle = (low + high) >>> 1;
+                if (sequences[middle] <= sequence) {
+                    position = positions[middle];
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            return position;
+        }
+    }
+
+    // gets every change of a file from a position on in order, false stops the walk
+    private interface Visitor {
+        boolean visit(long sequence, long position, SaveItem item);
+    }
+
+    private final Path directory;
+    private final long retentionMillis;
+    private final List<Segment> segments = new ArrayList<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition appended = lock.newCondition();
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+    private FileChannel channel;    // of the last file, only the writer uses it
+    private boolean dirty = false;
+    private volatile long lastSequence = 0;
+
+    public ChangeLog(Path directory, long retentionMillis) {
+        this.directory = directory;
+        this.retentionMillis = retentionMillis;
+    }
+
+    public void open() throws IOException {
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, FILE_PREFIX + "*.vdb")) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                long first = Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - ".vdb".length()));
+                segments.add(new Segment(first, path, Files.size(path)));
+            }
+        }
+        segments.sort(Comparator.comparingLong(segment -> segment.first));
+        if (segments.isEmpty()) {
+            logger.info("Change log is empty in " + directory.toAbsolutePath());
+            return;
+        }
+
+        // the last file may end in a change a crash cut off, it is cut off the file too. A bad change with more after it
+        // is damage to what was already written, cutting there would lose every change after it
+        Segment last = segments.getLast();
+        lastSequence = last.first - 1;
+        long valid = walk(last, LogRecord.HEADER_SIZE, (sequence, position, item) -> {
+            last.index(sequence, position);
+            lastSequence = sequence;
+            return true;
+        });
+        last.complete = true;
+        if (valid < last.size) {
+            try (FileChannel file = FileChannel.open(last.path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                if (!LogReader.isTail(file, valid, last.size)) {
+                    throw new IOException("Change log file " + last.path.getFileName() + " has a corrupt change at offset "
+                            + valid + " with " + (last.size - valid) + " bytes after it, refusing to start");
+                }
+                logger.warning("Cutting " + (last.size - valid) + " bytes of an unfinished change off " + last.path.getFileName());
+                file.truncate(valid);
+                file.force(true);
+            }
+            last.size = valid;
+        }
+        logger.info("Change log has " + segments.size() + " files in " + directory.toAbsolutePath()
+                + ", changes " + getFirstSequence() + " to " + lastSequence);
+    }
+
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    // the oldest change still kept, one past the last when there is none
+    public long getFirstSequence() {
+        lock.lock();
+        try {
+            return segments.isEmpty() ? lastSequence + 1 : segments.getFirst().first;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // numbers and writes the items the writer took from its queue, in the order it took them
+    public void append(List<SaveItem> items) throws IOException {
+        Segment segment = active();
+        long start = segment.size;
+        buffer.reset();
+        segment.lock.lock();
+        try {
+            long sequence = lastSequence;
+            for (SaveItem item : items) {
+                segment.index(++sequence, start + buffer.size());
+                buffer.writeBytes(LogRecord.encodeChange(sequence, item));
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+
+        ByteBuffer bytes = ByteBuffer.wrap(buffer.toByteArray());
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        dirty = true;
+
+        lock.lock();
+        try {
+            segment.size = start + bytes.capacity();
+            lastSequence += items.size();
+            appended.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        if (segment.size >= Constants.CHANGES_SEGMENT_SIZE) {
+            force();
+            channel.close();
+            channel = null;
+            expire();
+        }
+    }
+
+    public void force() throws IOException {
+        if (channel != null && dirty) {
+            channel.force(false);
+        }
+        dirty = false;
+    }
+
+    // deletes the sealed files nothing was written to within the retention, the last one always stays
+    public void expire() throws IOException {
+        long oldest = System.currentTimeMillis() - retentionMillis;
+        while (true) {
+            Segment expired;
+            lock.lock();
+            try {
+                if (segments.size() < 2 || Files.getLastModifiedTime(segments.getFirst().path).toMillis() >= oldest) return;
+                expired = segments.removeFirst();
+            } finally {
+                lock.unlock();
+            }
+            Files.deleteIfExists(expired.path);
+            logger.info("Dropped change log file " + expired.path.getFileName() + " past the retention, oldest change is now " + getFirstSequence());
+        }
+    }
+
+    // waits until there are changes from the given sequence number on, false when the time ran out
+    public boolean await(long from, long millis) throws InterruptedException {
+        long nanos = TimeUnit.MILLISECONDS.toNanos(millis);
+        lock.lock();
+        try {
+            while (lastSequence < from) {
+                if (nanos <= 0) return false;
+                nanos = appended.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // adds the changes from the given sequence number on, at most count of them unless the last batch has more, and
+    // never more than about maxChars of keys and values. A batch always comes whole. Returns the sequence number to
+    // read from next time
+    public long read(long from, int count, int maxChars, List<Change> changes) throws IOException {
+        List<Segment> files;
+        lock.lock();
+        try {
+            files = new ArrayList<>(segments);
+        } finally {
+            lock.unlock();
+        }
+
+        int start = Math.max(files.size() - 1, 0);
+        while (start > 0 && files.get(start).first > from) start--;
+
+        long[] next = {from};
+        int[] chars = {0};
+        for (int i = start; i < files.size(); i++) {
+            Segment segment = files.get(i);
+            if (!segment.complete) indexSealed(segment);
+            long position;
+            segment.lock.lock();
+            try {
+                position = segment.positionOf(from);
+            } finally {
+                segment.lock.unlock();
+            }
+
+            boolean[] full = {false};
+            walk(segment, position, (sequence, at, item) -> {
+                if (sequence < from) return true;
+                if (sequence >= next[0] && (changes.size() >= count || chars[0] >= maxChars)) {
+                    full[0] = true;
+                    return false;
+                }
+                changes.add(new Change(sequence, item));
+                chars[0] += item.getKey().length() + (item.getValue() == null ? 0 : item.getValue().length());
+                next[0] = sequence + 1;
+                return true;
+            });
+            if (full[0]) break;
+        }
+        return next[0];
+    }
+
+    private Segment active() throws IOException {
+        lock.lock();
+        try {
+            if (channel == null) {
+                Segment last = segments.isEmpty() ? null : segments.getLast();
+                if (last == null || last.size >= Constants.CHANGES_SEGMENT_SIZE) {
+                    long first = lastSequence + 1;
+                    Path path = directory.resolve(FILE_PREFIX + first + ".vdb");
+                    try (FileChannel file = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                        file.write(ByteBuffer.wrap(LogRecord.header(System.currentTimeMillis())));
+                        file.force(true);
+                    }
+                    last = new Segment(first, path, LogRecord.HEADER_SIZE);
+                    last.complete = true;
+                    segments.add(last);
+                }
+                channel = FileChannel.open(last.path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+            return segments.getLast();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // a sealed file from before the start is indexed the first time somebody reads it
+    private void indexSealed(Segment segment) throws IOException {
+        segment.lock.lock();
+        try {
+            if (segment.complete) return;
+            walk(segment, LogRecord.HEADER_SIZE, (sequence, position, item) -> {
+                segment.index(sequence, position);
+                return true;
+            });
+            segment.complete = true;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    // reads the file a chunk at a time from the position up to its written size, returns where the last whole change
+    // ended. A change larger than a chunk is read again with a chunk large enough
+    private long walk(Segment segment, long position, Visitor visitor) throws IOException {
+        long end = segment.size;
+        int chunkSize = Constants.CHANGES_READ_SIZE;
+        try (FileChannel file = FileChannel.open(segment.path, StandardOpenOption.READ)) {
+            while (position < end) {
+                ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(chunkSize, end - position));
+                while (chunk.hasRemaining()) {
+                    if (file.read(chunk, position + chunk.position()) < 0) break;
+                }
+                chunk.flip();
+
+                LogReader reader = new LogReader(chunk, position);
+                long changeStart = position;
+                long sequence = -1;
+                SaveItem item;
+                while (true) {
+                    long before = reader.getValidOffset();
+                    if ((item = reader.next()) == null) break;
+                    if (reader.getSequence() != sequence) {
+                        sequence = reader.getSequence();
+                        changeStart = before;
+                    }
+                    if (!visitor.visit(sequence, changeStart, item)) return reader.getValidOffset();
+                }
+                if (reader.isCorrupt()) return reader.getValidOffset();
+
+                long read = reader.getValidOffset();
+                if (read == position) {
+                    if (chunk.capacity() == end - position) return position;   // the last change isn't whole
+                    chunkSize *= 2;
+                }
+                position = read;
+            }
+        }
+        return position;
+    }
+}
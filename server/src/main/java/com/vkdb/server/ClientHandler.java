@@ -4,335 +4,889 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.net.Socket;
+import java.io.UTFDataFormatException;
 import java.net.SocketException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+import static com.vkdb.server.CommandTable.command;
 
 public class ClientHandler implements Runnable {
     private final SocketItem socketItem;
-    private final LinkedBlockingQueue<NotifyItem> notificationsQueue;
+    private final LinkedBlockingQueue<Notification> notificationsQueue;
     private static final Logger logger = Logger.getLogger(ClientHandler.class.getName());
-    private final ConcurrentHashMap<String, NotifyItem> keySocketsMap;
+    // MSET and MDEL change their keys under the write lock and MGET reads under the read lock, so a multi key read
+    // sees a multi key write whole or not at all
+    private static final ReentrantReadWriteLock batchLock = new ReentrantReadWriteLock();
+    // every command once with its handler, the replicated ones are the writes, sent on to the replicas once they changed
+    // something here
+    private static final CommandTable COMMANDS = new CommandTable(
+            command("DISCONNECT", (client, parts) -> Reply.ok("BYE"), false),
+            command("WHOAMI", (client, parts) -> Reply.ok(client.loggedInUsername), false),
+            command("KEYS", (client, parts) -> client.streamListing(false), false),
+            command("ALL", (client, parts) -> client.streamListing(true), false),
+            command("SCAN", ClientHandler::scan, false),
+            command("CHANGES", ClientHandler::changes, false),
+            command("REGISTER", ClientHandler::register, true),
+            new CommandTable.Command("LOGIN", ClientHandler::login, false, true),
+            command("SET", ClientHandler::set, true),
+            command("SETX", ClientHandler::setx, true),
+            command("GET", ClientHandler::get, false),
+            command("DEL", ClientHandler::del, true),
+            command("MSET", ClientHandler::mset, true),
+            command("MGET", ClientHandler::mget, false),
+            command("MDEL", ClientHandler::mdel, true),
+            command("INFO", ClientHandler::info, false),
+            command("CLIENTS", ClientHandler::clients, false),
+            new CommandTable.Command("PROTOCOL", ClientHandler::protocol, false, true),
+            command("SNAPSHOT", (client, parts) -> client.snapshot(), false),
+            command("BGSAVE", (client, parts) -> client.snapshot(), false),
+            command("START", (client, parts) -> Reply.ok(""), false),   // just a fake command for no use, but don't remove it in any case
+            command("USERLIST", ClientHandler::userlist, false),
+            command("BEGIN", ClientHandler::begin, false),
+            command("COMMIT", ClientHandler::commit, false),
+            command("NOTIFY", ClientHandler::notifyKey, false),
+            command("UNNOTIFY", ClientHandler::unnotifyKey, false),
+            command("PNOTIFY", ClientHandler::notifyPattern, false),
+            command("PUNNOTIFY", ClientHandler::unnotifyPattern, false),
+            command("PSYNC", ClientHandler::psync, false),
+            command("REPLCONF", ClientHandler::replconf, false),
+            command("WAIT", ClientHandler::waitForReplicas, false),
+            command("DURABILITY", ClientHandler::durability, false),
+            command("MAXLAG", ClientHandler::maxLag, false),
+            command("REPLICAOF", ClientHandler::replicaOf, false));
+    private final Subscriptions subscriptions;
     private final LinkedBlockingQueue<SaveItem> diskWriteItems;
-    private final ConcurrentHashMap<String, SaveItem> database;
+    private final Store database;
     private final ConcurrentHashMap<String, AuthUser> authUsers;
-    private final LinkedList<SocketItem> replicas;
+    private final Replication replication;
+    private final Snapshotter snapshotter;
+    private final Evictor evictor;
+    private final Expirer expirer;
+    private final ChangeLog changeLog;
     private boolean inTransaction = false;
     private boolean isLoggedIn = false;
-    private final LinkedList<String> transactionList = new LinkedList<>();
+    private boolean switchToBinary = false;
+    private boolean changed = false;    // set by a write that went in, one refused or only queued isn't replicated
+    private boolean isReplica = false;  // after PSYNC the connection only carries the replication stream
+    private long lastWriteOffset = 0;   // of this connection's last write in the replication stream, for WAIT
+    private int durableReplicas = 0;    // replicas that have to acknowledge a write before it is answered
+    private long durableTimeout = 0;
+    private long maxLag = 0;    // millis a replica may be behind its master and still answer this connection's reads
+    private boolean isMaster = false;   // the link of a replica to its master, the only one writing on a replica
+    private int requestId = 0;  // of the binary request being handled, listings send their chunks under it
+    private final LinkedList<String[]> transactionList = new LinkedList<>();
+    private final CommandParser parser = new CommandParser(COMMANDS);
     private String loggedInUsername;
 
-    public ClientHandler(SocketItem socketItem, LinkedBlockingQueue<NotifyItem> notificationsQueue, ConcurrentHashMap<String, NotifyItem> keySocketsMap, LinkedBlockingQueue<SaveItem> diskWriteItems, ConcurrentHashMap<String, AuthUser> authUsers, LinkedList<SocketItem> replicas) {
+    public ClientHandler(SocketItem socketItem, LinkedBlockingQueue<Notification> notificationsQueue, Subscriptions subscriptions, LinkedBlockingQueue<SaveItem> diskWriteItems, ConcurrentHashMap<String, AuthUser> authUsers, Replication replication, Snapshotter snapshotter, Evictor evictor, Expirer expirer, ChangeLog changeLog) {
         this.socketItem = socketItem;
         this.notificationsQueue = notificationsQueue;
-        this.keySocketsMap = keySocketsMap;
+        this.subscriptions = subscriptions;
         this.diskWriteItems = diskWriteItems;
         this.database = socketItem.getDatabase();
         this.authUsers = authUsers;
-        this.replicas = replicas;
+        this.replication = replication;
+        this.snapshotter = snapshotter;
+        this.evictor = evictor;
+        this.expirer = expirer;
+        this.changeLog = changeLog;
     }
 
     @Override
     public void run() {
         try {
-            Socket socket = socketItem.getSocket();
-
             logger.info("Client connected from " + socketItem.getId());
+            if (socketItem.getOutputBuffer() != null) socketItem.getOutputBuffer().setOwner(Thread.currentThread());
 
             DataInputStream di = socketItem.getInputStream();
             DataOutputStream dou = socketItem.getOutputStream();
 
             while (true) {
-                String originalCommand = di.readUTF();
-                String[] commandParts = originalCommand.split(" ");
-                String command = commandParts[0];
-                String output = processCommand(originalCommand, command, commandParts);
-                if (output == null) break;
-                dou.writeUTF(output);
-            }
+                if (socketItem.getProtocol() == SocketItem.Protocol.BINARY) {
+                    // arguments arrive typed and whole, so values may hold spaces or be larger than a text frame allows
+                    BinaryFrame.Request request = BinaryFrame.read(di);
+                    requestId = request.id();
+                    Reply output = processCommand(COMMANDS.lookup(request.args()[0]), request.args());
+                    if (output == null) break;
+                    BinaryFrame.write(dou, request.id(), BinaryFrame.statusOf(output), output.text());
+                } else {
+                    parser.read(di);
+                    Reply output = processCommand(parser.command(), parser.args());
+                    if (output == null) break;
+                    if (isReplica) continue;
+                    try {
+                        dou.writeUTF(output.text());
+                    } catch (UTFDataFormatException e) {
+                        // nothing was sent yet, only binary clients can read replies beyond 64 KB
+                        dou.writeUTF("ERROR REPLY TOO LARGE USE PROTOCOL BINARY");
+                    }
 
-            cleanupNotifications();
-            if (socket.isClosed()) {
-                logger.info("Client Disconnected from " + socketItem.getId());
-            } else {
-                socket.close();
+                    // the reply to PROTOCOL BINARY is the last text frame on this connection
+                    if (switchToBinary) socketItem.setProtocol(SocketItem.Protocol.BINARY);
+                }
+
+                // a client pipelining commands gets all the replies for what it sent in one write
+                if (!socketItem.hasPendingInput()) dou.flush();
             }
+            dou.flush();
+            logger.info("Client Disconnected from " + socketItem.getId());
         } catch (EOFException | SocketException e) {
-            cleanupNotifications();
             logger.info("Client Disconnected from " + socketItem.getId());
         } catch (Exception e) {
             logger.info("Got an error " + e.getLocalizedMessage());
+        } finally {
+            replication.detach(socketItem);
+            cleanupNotifications();
+            try {
+                socketItem.close();     // the replies still buffered go out first
+            } catch (IOException e) {
+                // already gone
+            }
         }
     }
 
-    private String processCommand(String originalCommand, String command, String[] commandParts) {
-        try {
-            String output = "";
-            boolean canReplicate = true;
+    // the link to the master runs the replicated commands as the user it logged in with
+    void loginAsMaster(String username) {
+        isLoggedIn = true;
+        loggedInUsername = username;
+        isMaster = true;
+    }
 
+    // runs one command for a connection that speaks another protocol, null when the connection has to be closed
+    Reply execute(String[] commandParts) {
+        return processCommand(COMMANDS.lookup(commandParts[0]), commandParts);
+    }
+
+    private Reply processCommand(CommandTable.Command command, String[] commandParts) {
+        try {
             // TODO : make sure i can without logging in
-            if (!isLoggedIn && !command.equals("LOGIN")) {
-                output = "ERROR PLEASE LOGIN";
-                return output;
+            if (!isLoggedIn && (command == null || !command.beforeLogin())) {
+                return Reply.error("ERROR PLEASE LOGIN");
+            }
+            if (command == null) {
+                return Reply.error("WRONG AVAILABLE ARE GET, SET, SETX, DEL, MGET, MSET, MDEL, NOTIFY, UNNOTIFY, PNOTIFY, PUNNOTIFY,BEGIN,COMMIT,LOGIN,REGISTER,WHOAMI,SNAPSHOT,INFO,PROTOCOL,SCAN,CHANGES,CLIENTS,PSYNC,REPLICAOF,WAIT,DURABILITY,MAXLAG");
             }
 
-            switch (command) {
-                case "DISCONNECT" -> output = "BYE";
-                case "WHOAMI" -> output = loggedInUsername;
-                case "KEYS" -> {
-                    for (SaveItem item : database.values()) {
-                        output += item.getKey() + "\n";
-                    }
-                    if (!output.isEmpty()) {
-                        output = output.substring(0, output.length() - 1);
-                    }
-                }
-                case "ALL" -> {
-                    for (SaveItem item : database.values()) {
-                        output += item.toSend() + "\n";
-                    }
-                    if (!output.isEmpty()) {
-                        output = output.substring(0, output.length() - 1);
-                    }
-                }
-                case "REGISTER" -> {
-                    if (commandParts.length != 3) {
-                        output = "ERROR USAGE REGISTER <USERNAME> <PASSWORD>";
-                    } else {
-                        String username = commandParts[1];
-                        String password = commandParts[2];
-                        if (authUsers.containsKey(username)) {
-                            output = "ERROR USERNAME EXISTS";
-                        } else {
-                            AuthUser newUser = new AuthUser(username, password);
-                            authUsers.put(username, newUser);
-                            output = "REGISTERED";
-
-                            // writing to the file to re-construct the user-list after server off
-                            Files.writeString(Constants.USER_LIST_PATH, newUser.toString(), StandardOpenOption.APPEND);
-                        }
-                    }
-                }
-                case "LOGIN" -> {
-                    if (commandParts.length != 3) {
-                        output = "ERROR USAGE LOGIN <USERNAME> <PASSWORD>";
-                    } else {
-                        String username = commandParts[1];
-                        String password = commandParts[2];
-                        if (authUsers.containsKey(username)) {
-                            AuthUser authUser = authUsers.get(username);
-                            if (!password.equals(authUser.getPassword())) {
-                                output = "ERROR PASSWORD IS WRONG";
-                            } else {
-                                authUser.updateLastLoginTime();
-                                isLoggedIn = true;
-                                loggedInUsername = username;
-                                output = "LOGIN SUCCESSFUL!";
-                            }
-                        } else {
-                            output = "ERROR USER WITH USERNAME " + username + " NOT FOUND";
-                        }
-                    }
-                }
-                case "SET" -> {
-                    if (commandParts.length != 3) {
-                        output = "ERROR USAGE SET <KEY> <VALUE>";
-                    } else {
-                        if (inTransaction) {
-                            transactionList.addLast(originalCommand);
-                            output = "SAVED TO BATCH";
-                            break;
-                        }
-                        // we save it to a hashmap
-                        String key = commandParts[1];
-                        SaveItem saveItem = database.get(key);
-                        String oldValue = saveItem == null ? "" : saveItem.getValue();
-                        String newValue = commandParts[2];
-                        if (!newValue.equals(oldValue)) {
-                            // check if the key is marked as notified
-                            if (keySocketsMap.containsKey(key)) {
-                                NotifyItem item = keySocketsMap.get(key);       // Take the item from the key,socket map
-                                item.setValue(newValue);                        // set the updated value
-                                notificationsQueue.put(item);                   // put that item in a queue
-                            }
-                        }
-                        saveItem = new SaveItem(key, newValue, "S");
-                        diskWriteItems.put(saveItem); // adding it to the list
-                        database.put(key, saveItem);
-                        output = "SAVED";
-                    }
-                }
-                case "SETX" -> {
-                    if (commandParts.length != 4) {
-                        output = "ERROR USAGE SETX <KEY> <VALUE> <TTL>";
-                    } else {
-                        if (inTransaction) {
-                            transactionList.addLast(originalCommand);
-                            output = "SAVED TO BATCH";
-                            break;
-                        }
-                        // we save it to a hashmap
-                        String key = commandParts[1];
-                        SaveItem saveItem = database.get(key);
-                        String oldValue = saveItem == null ? "" : saveItem.getValue();
-                        String newValue = commandParts[2];
-                        long ttl;
-                        try {
-                            ttl = Long.parseLong(commandParts[3]);
-                        } catch (NumberFormatException e) {
-                            if (inTransaction) {
-                                output = null;
-                            } else {
-                                output = "ERROR <TTL> SHOULD BE NUMBER GOT : " + commandParts[2];
-                            }
-                            break;
-                        }
-
-                        if (!newValue.equals(oldValue)) {
-                            // check if the key is marked as notified
-                            if (keySocketsMap.containsKey(key)) {
-                                NotifyItem item = keySocketsMap.get(key);
-                                item.setValue(newValue);
-                                notificationsQueue.put(item);
-                            }
-                        }
-                        saveItem = new SaveItem(key, newValue, "SX", ttl);
-                        diskWriteItems.put(saveItem); // adding it to the list
-                        database.put(key, saveItem);
-                        output = "SAVED";
-                    }
-                }
-                case "GET" -> {
-                    if (commandParts.length != 2) {
-                        output = "ERROR USAGE GET <KEY>";
-                    } else {
-                        // we get it from hashmap if exists NOT FOUND if it doesn't
-                        String key = commandParts[1];
-                        SaveItem item = database.getOrDefault(key, null);
-                        output = item == null ? "NOT FOUND" : item.getValue();
-                    }
+            // a write here would never reach the master and be lost with the next full sync
+            if (command.replicated() && !isMaster && replication.getLink() != null) {
+                return Reply.error("ERROR READONLY REPLICA, WRITE TO THE MASTER");
+            }
+
+            changed = false;
+            Reply output;
+            if (command.replicated()) {
+                replication.lockWrites();
+                try {
+                    output = command.handler().handle(this, commandParts);
+                    if (changed) lastWriteOffset = replication.propagate(commandParts);
+                } finally {
+                    replication.unlockWrites();
                 }
-                case "DEL" -> {
-                    if (commandParts.length != 2) {
-                        output = "ERROR USAGE DEL <KEY>";
-                    } else {
-                        if (inTransaction) {
-                            transactionList.addLast(originalCommand);
-                            output = "SAVED TO BATCH";
-                            break;
-                        }
-                        // we get it from hashmap if exists NOT FOUND if it doesn't
-                        String key = commandParts[1];
-                        if (database.containsKey(key)) {
-                            SaveItem item = database.get(key);
-                            item.setOperation("D");
-                            database.remove(key);
-                            diskWriteItems.put(item);
-                            output = "DELETED";
-                        } else {
-                            output = "NOT FOUND";
-                        }
-                    }
+            } else {
+                output = command.handler().handle(this, commandParts);
+            }
+            if (changed && durableReplicas > 0) {
+                // waited for outside the lock, the acknowledgements come in under it
+                int acknowledged = replication.await(lastWriteOffset, durableReplicas, durableTimeout);
+                if (acknowledged < durableReplicas) {
+                    return Reply.error("ERROR " + output.text() + " BUT ONLY " + acknowledged + " OF " + durableReplicas + " REPLICAS ACKNOWLEDGED IT");
                 }
-                case "START" -> {
-                    // just a fake command for no use, but don't remove it in any case
+            }
+            return output;
+        } catch (Exception e) {
+            logger.info(e.getLocalizedMessage());
+            return null;
+        }
+    }
+
+    // the request arrays are reused by the parser, a queued one needs its own copy
+    private Reply queue(String[] commandParts) {
+        transactionList.addLast(commandParts.clone());
+        return Reply.ok("SAVED TO BATCH");
+    }
+
+    private Reply register(String[] commandParts) throws IOException {
+        if (commandParts.length != 3) {
+            return Reply.error("ERROR USAGE REGISTER <USERNAME> <PASSWORD>");
+        }
+        String username = commandParts[1];
+        String password = commandParts[2];
+        if (authUsers.containsKey(username)) {
+            return Reply.error("ERROR USERNAME EXISTS");
+        }
+        AuthUser newUser = new AuthUser(username, password);
+        authUsers.put(username, newUser);
+
+        // writing to the file to re-construct the user-list after server off
+        Files.writeString(Constants.USER_LIST_PATH, newUser.toString(), StandardOpenOption.APPEND);
+        changed = true;
+        return Reply.ok("REGISTERED");
+    }
+
+    private Reply login(String[] commandParts) {
+        if (commandParts.length != 3) {
+            return Reply.error("ERROR USAGE LOGIN <USERNAME> <PASSWORD>");
+        }
+        String username = commandParts[1];
+        String password = commandParts[2];
+        if (!authUsers.containsKey(username)) {
+            return Reply.error("ERROR USER WITH USERNAME " + username + " NOT FOUND");
+        }
+        AuthUser authUser = authUsers.get(username);
+        if (!password.equals(authUser.getPassword())) {
+            return Reply.error("ERROR PASSWORD IS WRONG");
+        }
+        authUser.updateLastLoginTime();
+        isLoggedIn = true;
+        loggedInUsername = username;
+        return Reply.ok("LOGIN SUCCESSFUL!");
+    }
+
+    private Reply set(String[] commandParts) throws InterruptedException {
+        if (commandParts.length != 3) {
+            return Reply.error("ERROR USAGE SET <KEY> <VALUE>");
+        }
+        if (inTransaction) {
+            return queue(commandParts);
+        }
+        if (!evictor.makeRoom()) {
+            return Reply.error("ERROR OOM COMMAND NOT ALLOWED WHEN USED MEMORY > MAXMEMORY");
+        }
+        // we save it to a hashmap
+        String key = commandParts[1];
+        SaveItem saveItem = database.get(key);
+        String oldValue = saveItem == null ? "" : saveItem.getValue();
+        String newValue = commandParts[2];
+        if (!newValue.equals(oldValue)) {
+            // check if the key is marked as notified
+            if (subscriptions.isWatched(key)) {
+                notificationsQueue.put(new Notification(key, newValue));    // its own copy of the change, queued once for every subscriber
+            }
+        }
+        saveItem = new SaveItem(key, newValue, "S");
+        database.put(key, saveItem);  // memory first, a snapshot must never miss a write the log already has
+        evictor.recordWrite(key, saveItem);
+        diskWriteItems.put(saveItem); // adding it to the list
+        changed = true;
+        return Reply.ok("SAVED");
+    }
+
+    private Reply setx(String[] commandParts) throws InterruptedException {
+        if (commandParts.length != 4) {
+            return Reply.error("ERROR USAGE SETX <KEY> <VALUE> <TTL>");
+        }
+        if (inTransaction) {
+            return queue(commandParts);
+        }
+        // we save it to a hashmap
+        String key = commandParts[1];
+        SaveItem saveItem = database.get(key);
+        String oldValue = saveItem == null ? "" : saveItem.getValue();
+        String newValue = commandParts[2];
+        long ttl;
+        try {
+            ttl = Long.parseLong(commandParts[3]);
+        } catch (NumberFormatException e) {
+            return Reply.error("ERROR <TTL> SHOULD BE NUMBER GOT : " + commandParts[2]);
+        }
+        if (!evictor.makeRoom()) {
+            return Reply.error("ERROR OOM COMMAND NOT ALLOWED WHEN USED MEMORY > MAXMEMORY");
+        }
+
+        if (!newValue.equals(oldValue)) {
+            // check if the key is marked as notified
+            if (subscriptions.isWatched(key)) {
+                notificationsQueue.put(new Notification(key, newValue));
+            }
+        }
+        saveItem = new SaveItem(key, newValue, "SX", ttl);
+        database.put(key, saveItem);
+        expirer.schedule(key, saveItem.getTtl());
+        evictor.recordWrite(key, saveItem);
+        diskWriteItems.put(saveItem); // adding it to the list
+        changed = true;
+        return Reply.ok("SAVED");
+    }
+
+    private Reply get(String[] commandParts) throws InterruptedException {
+        if (commandParts.length != 2) {
+            return Reply.error("ERROR USAGE GET <KEY>");
+        }
+        Reply stale = checkLag();
+        if (stale != null) return stale;
+        // we get it from hashmap if exists NOT FOUND if it doesn't
+        String key = commandParts[1];
+        SaveItem item = database.get(key);
+        evictor.recordRead(key);
+        if (item != null && item.hasExpired()) {
+            expirer.expire(key);    // not waiting for the timing wheel to get to it
+            item = null;
+        }
+        return Reply.ok(item == null ? "NOT FOUND" : item.getValue());
+    }
+
+    private Reply del(String[] commandParts) throws InterruptedException {
+        if (commandParts.length != 2) {
+            return Reply.error("ERROR USAGE DEL <KEY>");
+        }
+        if (inTransaction) {
+            return queue(commandParts);
+        }
+        // we get it from hashmap if exists NOT FOUND if it doesn't
+        String key = commandParts[1];
+        SaveItem item = database.remove(key);
+        if (item == null) {
+            return Reply.ok("NOT FOUND");
+        }
+        // a fresh item, the stored one may still be waiting in the write queue as a set
+        diskWriteItems.put(new SaveItem(key, item.getValue(), "D"));
+        changed = true;
+        return Reply.ok("DELETED");
+    }
+
+    private Reply mset(String[] commandParts) throws InterruptedException {
+        if (commandParts.length < 3 || commandParts.length % 2 == 0) {
+            return Reply.error("ERROR USAGE MSET <KEY> <VALUE> [<KEY> <VALUE> ...]");
+        }
+        if (inTransaction) {
+            return queue(commandParts);
+        }
+        if (!evictor.makeRoom()) {
+            return Reply.error("ERROR OOM COMMAND NOT ALLOWED WHEN USED MEMORY > MAXMEMORY");
+        }
+        List<SaveItem> items = new ArrayList<>(commandParts.length / 2);
+        List<Notification> notifications = new ArrayList<>();
+        batchLock.writeLock().lock();
+        try {
+            // all keys or none, an MGET never sees half of it
+            for (int i = 1; i < commandParts.length; i += 2) {
+                String key = commandParts[i];
+                SaveItem previous = database.get(key);
+                if ((previous == null || !commandParts[i + 1].equals(previous.getValue())) && subscriptions.isWatched(key)) {
+                    notifications.add(new Notification(key, commandParts[i + 1]));
                 }
-                case "USERLIST" -> {
-                    for (String key : authUsers.keySet()) {
-                        output = output.concat(key + "\n");
-                    }
-                    if (!output.isEmpty()) {
-                        output = output.substring(0, output.length() - 1);
-                    }
+                SaveItem saveItem = new SaveItem(key, commandParts[i + 1], "S");
+                database.put(key, saveItem);
+                items.add(saveItem);
+            }
+        } finally {
+            batchLock.writeLock().unlock();
+        }
+        for (Notification notification : notifications) {
+            notificationsQueue.put(notification);
+        }
+        items.forEach(item -> evictor.recordWrite(item.getKey(), item));
+        diskWriteItems.put(new BatchItem(items));   // one log record for the whole command
+        changed = true;
+        return Reply.ok("SAVED");
+    }
+
+    private Reply mget(String[] commandParts) throws InterruptedException {
+        if (commandParts.length < 2) {
+            return Reply.error("ERROR USAGE MGET <KEY> [<KEY> ...]");
+        }
+        Reply stale = checkLag();
+        if (stale != null) return stale;
+        SaveItem[] items = new SaveItem[commandParts.length - 1];
+        batchLock.readLock().lock();
+        try {
+            for (int i = 0; i < items.length; i++) {
+                items[i] = database.get(commandParts[i + 1]);
+            }
+        } finally {
+            batchLock.readLock().unlock();
+        }
+        // one value per line in the order of the keys
+        StringJoiner values = new StringJoiner("\n");
+        for (int i = 0; i < items.length; i++) {
+            String key = commandParts[i + 1];
+            evictor.recordRead(key);
+            if (items[i] != null && items[i].hasExpired()) {
+                expirer.expire(key);
+                items[i] = null;
+            }
+            values.add(items[i] == null ? "NOT FOUND" : items[i].getValue());
+        }
+        return Reply.ok(values.toString());
+    }
+
+    private Reply mdel(String[] commandParts) throws InterruptedException {
+        if (commandParts.length < 2) {
+            return Reply.error("ERROR USAGE MDEL <KEY> [<KEY> ...]");
+        }
+        if (inTransaction) {
+            return queue(commandParts);
+        }
+        List<SaveItem> deletes = new ArrayList<>();
+        batchLock.writeLock().lock();
+        try {
+            for (int i = 1; i < commandParts.length; i++) {
+                SaveItem item = database.remove(commandParts[i]);
+                if (item != null) deletes.add(new SaveItem(item.getKey(), item.getValue(), "D"));
+            }
+        } finally {
+            batchLock.writeLock().unlock();
+        }
+        if (!deletes.isEmpty()) {
+            diskWriteItems.put(new BatchItem(deletes));
+            changed = true;
+        }
+        return Reply.ok("DELETED " + deletes.size());
+    }
+
+    private Reply info(String[] commandParts) {
+        return Reply.ok("keys:" + database.size() + "\n"
+                + "used_memory:" + database.memoryUsage() + "\n"
+                + "maxmemory:" + evictor.getMaxMemory() + "\n"
+                + "maxmemory_policy:" + evictor.getPolicy() + "\n"
+                + "evicted_keys:" + evictor.getEvictedKeys() + "\n"
+                + "expired_keys:" + expirer.getExpiredKeys() + "\n"
+                + "connected_clients:" + OutputBuffer.connections().size() + "\n"
+                + "output_limit_disconnects:" + OutputBuffer.getDisconnected() + "\n"
+                + "notifications_coalesced:" + NotificationQueue.getCoalesced() + "\n"
+                + "watched_keys:" + subscriptions.keys() + "\n"
+                + "watched_patterns:" + subscriptions.patterns() + "\n"
+                + replication.info());
+    }
+
+    // one line per connection with the output it has buffered, the most it ever had and what it was sent so far
+    private Reply clients(String[] commandParts) {
+        StringJoiner lines = new StringJoiner("\n");
+        for (OutputBuffer connection : OutputBuffer.connections()) {
+            lines.add(connection.describe());
+        }
+        return Reply.ok(lines.toString());
+    }
+
+    private Reply protocol(String[] commandParts) {
+        if (commandParts.length != 2 || !commandParts[1].equals("BINARY")) {
+            return Reply.error("ERROR USAGE PROTOCOL BINARY");
+        }
+        if (socketItem.getProtocol() == SocketItem.Protocol.BINARY) {
+            return Reply.error("ERROR ALREADY USING BINARY");
+        }
+        switchToBinary = true;
+        return Reply.ok("OK BINARY");
+    }
+
+    // a replica asking for the stream, Replication answers it and the connection gets nothing else from here on
+    private Reply psync(String[] commandParts) throws IOException, InterruptedException {
+        if (commandParts.length != 3 && (commandParts.length != 4 || !commandParts[3].equals("COMPRESS"))) {
+            return Reply.error("ERROR USAGE PSYNC <REPLICATION ID> <OFFSET> [COMPRESS]");
+        }
+        if (socketItem.getProtocol() != SocketItem.Protocol.TEXT || socketItem.getOutputBuffer() == null) {
+            return Reply.error("ERROR PSYNC ONLY WORKS ON THE TEXT PROTOCOL");
+        }
+        long offset;
+        try {
+            offset = Long.parseLong(commandParts[2]);
+        } catch (NumberFormatException e) {
+            return Reply.error("ERROR OFFSET MUST BE A NUMBER");
+        }
+        isReplica = true;
+        replication.psync(socketItem, commandParts[1], offset, commandParts.length == 4);
+        return Reply.ok("");
+    }
+
+    // sent by a replica on its replication connection, the offset it applied so far
+    private Reply replconf(String[] commandParts) {
+        if (commandParts.length != 3 || !commandParts[1].equals("ACK")) {
+            return Reply.error("ERROR USAGE REPLCONF ACK <OFFSET>");
+        }
+        if (!isReplica) {
+            return Reply.error("ERROR REPLCONF IS ONLY FOR REPLICAS");
+        }
+        long offset;
+        try {
+            offset = Long.parseLong(commandParts[2]);
+        } catch (NumberFormatException e) {
+            return Reply.error("ERROR <OFFSET> SHOULD BE A NUMBER");
+        }
+        if (offset < 0) {
+            return Reply.error("ERROR <OFFSET> CAN'T BE NEGATIVE");
+        }
+        replication.acknowledge(socketItem, offset);
+        return Reply.ok("");
+    }
+
+    // how many replicas have this connection's writes so far, waiting up to the timeout for the given number of them
+    private Reply waitForReplicas(String[] commandParts) throws InterruptedException {
+        if (commandParts.length != 3) {
+            return Reply.error("ERROR USAGE WAIT <NUMREPLICAS> <TIMEOUT>");
+        }
+        int count;
+        long timeout;
+        try {
+            count = Integer.parseInt(commandParts[1]);
+            timeout = Long.parseLong(commandParts[2]);
+        } catch (NumberFormatException e) {
+            return Reply.error("ERROR <NUMREPLICAS> AND <TIMEOUT> SHOULD BE NUMBERS");
+        }
+        if (count < 0 || timeout < 0) {
+            return Reply.error("ERROR <NUMREPLICAS> AND <TIMEOUT> CAN'T BE NEGATIVE");
+        }
+        return Reply.ok(Integer.toString(replication.await(lastWriteOffset, count, timeout)));
+    }
+
+    // every write of this connection waits for the replicas like a WAIT after it would, 0 replicas turns it off
+    private Reply durability(String[] commandParts) {
+        if (commandParts.length != 3) {
+            return Reply.error("ERROR USAGE DURABILITY <NUMREPLICAS> <TIMEOUT>");
+        }
+        int count;
+        long timeout;
+        try {
+            count = Integer.parseInt(commandParts[1]);
+            timeout = Long.parseLong(commandParts[2]);
+        } catch (NumberFormatException e) {
+            return Reply.error("ERROR <NUMREPLICAS> AND <TIMEOUT> SHOULD BE NUMBERS");
+        }
+        if (count < 0 || timeout < 0) {
+            return Reply.error("ERROR <NUMREPLICAS> AND <TIMEOUT> CAN'T BE NEGATIVE");
+        }
+        durableReplicas = count;
+        durableTimeout = timeout;
+        return Reply.ok("OK");
+    }
+
+    // reads on a replica further behind than this are refused so the client can go to another one, 0 takes any
+    private Reply maxLag(String[] commandParts) {
+        if (commandParts.length != 2) {
+            return Reply.error("ERROR USAGE MAXLAG <MILLIS>");
+        }
+        long millis;
+        try {
+            millis = Long.parseLong(commandParts[1]);
+        } catch (NumberFormatException e) {
+            return Reply.error("ERROR <MILLIS> SHOULD BE A NUMBER");
+        }
+        if (millis < 0) {
+            return Reply.error("ERROR <MILLIS> CAN'T BE NEGATIVE");
+        }
+        maxLag = millis;
+        return Reply.ok("OK");
+    }
+
+    // null when a read may be answered here, a master is never behind
+    private Reply checkLag() {
+        if (maxLag == 0) return null;
+        long lag = replication.getLagMillis();
+        if (lag < 0) return Reply.error("ERROR STALE REPLICA HAS NOT SYNCED WITH ITS MASTER YET");
+        if (lag > maxLag) return Reply.error("ERROR STALE REPLICA IS " + lag + " MS BEHIND ITS MASTER");
+        return null;
+    }
+
+    private Reply replicaOf(String[] commandParts) {
+        if (commandParts.length == 3 && commandParts[1].equals("NO") && commandParts[2].equals("ONE")) {
+            replication.stopReplicating();
+            return Reply.ok("OK");
+        }
+        boolean compressed = commandParts[commandParts.length - 1].equals("COMPRESS");
+        int length = compressed ? commandParts.length - 1 : commandParts.length;
+        if (length != 3 && length != 5) {
+            return Reply.error("ERROR USAGE REPLICAOF <HOST> <PORT> [<USERNAME> <PASSWORD>] [COMPRESS] OR REPLICAOF NO ONE");
+        }
+        int port;
+        try {
+            port = Integer.parseInt(commandParts[2]);
+        } catch (NumberFormatException e) {
+            return Reply.error("ERROR PORT MUST BE A NUMBER");
+        }
+        boolean started = length == 5
+                ? replication.replicaOf(commandParts[1], port, commandParts[3], commandParts[4], compressed)
+                : replication.replicaOf(commandParts[1], port, null, null, compressed);
+        return started ? Reply.ok("OK") : Reply.error("ERROR NO USER FOR THE MASTER GIVE <USERNAME> <PASSWORD> OR START THE SERVER WITH --ruser AND --rpass");
+    }
+
+    private Reply snapshot() {
+        return snapshotter.trigger() ? Reply.ok("SNAPSHOT STARTED") : Reply.error("ERROR SNAPSHOT ALREADY IN PROGRESS");
+    }
+
+    private Reply userlist(String[] commandParts) {
+        String output = "";
+        for (String key : authUsers.keySet()) {
+            output = output.concat(key + "\n");
+        }
+        if (!output.isEmpty()) {
+            output = output.substring(0, output.length() - 1);
+        }
+        return Reply.ok(output);
+    }
+
+    private Reply begin(String[] commandParts) {
+        inTransaction = true;
+        transactionList.addLast(new String[]{"START"});
+        return Reply.ok("START");
+    }
+
+    private Reply commit(String[] commandParts) {
+        if (transactionList.isEmpty()) {
+            return Reply.ok("NO ITEMS FOUND");
+        }
+        inTransaction = false;
+        while (!transactionList.isEmpty()) {
+            String[] parts = transactionList.poll();  // taking and removing the item from the linked-list
+            processCommand(COMMANDS.lookup(parts[0]), parts); // processing original command recursively
+        }
+        return Reply.ok("COMMITTED");
+    }
+
+    private Reply notifyKey(String[] commandParts) {
+        if (commandParts.length != 2) {
+            return Reply.error("ERROR USAGE NOTIFY <KEY>");
+        }
+        if (inTransaction) {
+            return queue(commandParts);
+        }
+        // if any change in the given key, it gets notified by our server to the client
+        socketItem.subscribe();
+        subscriptions.subscribe(commandParts[1], socketItem);
+        if (socketItem.getOutputBuffer() != null) {
+            socketItem.getOutputBuffer().setClientClass(OutputBuffer.ClientClass.SUBSCRIBER);
+        }
+        return Reply.ok("OK");
+    }
+
+    private Reply unnotifyKey(String[] commandParts) {
+        if (commandParts.length != 2) {
+            return Reply.error("ERROR USAGE UNNOTIFY <KEY>");
+        }
+        if (inTransaction) {
+            return queue(commandParts);
+        }
+        return Reply.ok(subscriptions.unsubscribe(commandParts[1], socketItem) ? "OK" : "NOT FOUND");
+    }
+
+    // PNOTIFY <PATTERN>, every key the glob matches like SCAN MATCH, session:* watches all keys starting with session:
+    private Reply notifyPattern(String[] commandParts) {
+        if (commandParts.length != 2) {
+            return Reply.error("ERROR USAGE PNOTIFY <PATTERN>");
+        }
+        if (inTransaction) {
+            return queue(commandParts);
+        }
+        socketItem.subscribe();
+        subscriptions.subscribePattern(commandParts[1], socketItem);
+        if (socketItem.getOutputBuffer() != null) {
+            socketItem.getOutputBuffer().setClientClass(OutputBuffer.ClientClass.SUBSCRIBER);
+        }
+        return Reply.ok("OK");
+    }
+
+    private Reply unnotifyPattern(String[] commandParts) {
+        if (commandParts.length != 2) {
+            return Reply.error("ERROR USAGE PUNNOTIFY <PATTERN>");
+        }
+        if (inTransaction) {
+            return queue(commandParts);
+        }
+        return Reply.ok(subscriptions.unsubscribePattern(commandParts[1], socketItem) ? "OK" : "NOT FOUND");
+    }
+
+    // KEYS and ALL walk the store a page at a time and send the listing in chunks as it goes, so it is never held whole.
+    // Returns the last chunk as the reply, resp clients can't take a listing in pieces and get it all at once. An entry
+    // too large for a text frame is left out for text clients, like a notification that doesn't fit
+    private Reply streamListing(boolean withValues) throws Exception {
+        Reply stale = checkLag();
+        if (stale != null) return stale;
+        boolean chunked = socketItem.getProtocol() != SocketItem.Protocol.RESP;
+        boolean text = socketItem.getProtocol() == SocketItem.Protocol.TEXT;
+        StringBuilder chunk = new StringBuilder();
+        List<SaveItem> page = new ArrayList<>(Constants.SCAN_PAGE_SIZE);
+        long cursor = 0;
+        do {
+            page.clear();
+            cursor = database.scan(cursor, Constants.SCAN_PAGE_SIZE, page);
+            for (SaveItem item : page) {
+                if (item.hasExpired()) {
+                    expirer.expire(item.getKey());
+                    continue;
                 }
-                case "BEGIN" -> {
-                    inTransaction = true;
-                    transactionList.addLast("START");
-                    output = "START";
+
+                String entry = withValues ? item.toSend() : item.getKey();
+                if (text && entry.length() >= Constants.LISTING_CHUNK_SIZE && utfLength(entry) >= Constants.MAX_TEXT_FRAME_SIZE) {
+                    logger.info("Entry of " + item.getKey() + " is too large for a text client " + socketItem.getId());
+                    continue;
                 }
-                case "COMMIT" -> {
-                    if (transactionList.isEmpty()) {
-                        output = "NO ITEMS FOUND";
-                    } else {
-                        inTransaction = false;
-                        while (!transactionList.isEmpty()) {
-                            String savedCommand = transactionList.poll();  // taking and removing the item from the linked-list
-                            String[] parts = savedCommand.split(" ");
-                            processCommand(savedCommand, parts[0], parts); // processing original command recursively
-                        }
-                        output = "COMMITTED";
-                    }
+                if (chunked && !chunk.isEmpty() && chunk.length() + entry.length() >= Constants.LISTING_CHUNK_SIZE) {
+                    sendPartial(chunk.toString());
+                    chunk.setLength(0);
                 }
-                case "NOTIFY" -> {
-                    if (commandParts.length != 2) {
-                        output = "ERROR USAGE NOTIFY <KEY>";
-                    } else {
-                        if (inTransaction) {
-                            transactionList.addLast(originalCommand);
-                            output = "SAVED TO BATCH";
-                            break;
-                        }
-                        // if any change in the given key, it gets notified by our server to the client
-                        String key = commandParts[1];
-                        // add it to a hashmap of to notify, it
-                        NotifyItem item = keySocketsMap.getOrDefault(key, new NotifyItem(new HashSet<>()));
-                        item.setKey(key);
-                        item.getSocketItems().add(socketItem);
-                        keySocketsMap.putIfAbsent(key, item);
-                        output = "OK";
+                if (!chunk.isEmpty()) chunk.append('\n');
+                chunk.append(entry);
+            }
+        } while (cursor != 0);
+        return Reply.ok(chunk.toString());
+    }
+
+    // the bytes writeUTF takes for the text, a null char takes two
+    private static long utfLength(String text) {
+        long length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            length += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+        }
+        return length;
+    }
+
+    // a text chunk ending in a newline and a binary reply with the partial status both say that more is coming
+    private void sendPartial(String chunk) throws IOException, InterruptedException {
+        if (socketItem.getProtocol() == SocketItem.Protocol.BINARY) {
+            BinaryFrame.write(socketItem.getOutputStream(), requestId, BinaryFrame.STATUS_PARTIAL, chunk);
+        } else {
+            socketItem.getOutputStream().writeUTF(chunk + "\n");
+        }
+        // the listing is produced no faster than the client takes it, it is never held whole in the output buffer
+        if (socketItem.getOutputBuffer() != null) {
+            socketItem.getOutputBuffer().awaitBelow(Constants.LISTING_CHUNK_SIZE * 4L);
+        }
+    }
+
+    // SCAN <CURSOR> [MATCH <PATTERN>] [COUNT <COUNT>], replies with the next cursor and then the keys, one per line
+    private Reply scan(String[] commandParts) throws InterruptedException {
+        Reply usage = Reply.error("ERROR USAGE SCAN <CURSOR> [MATCH <PATTERN>] [COUNT <COUNT>]");
+        if (commandParts.length < 2 || commandParts.length % 2 != 0) return usage;
+        Reply stale = checkLag();
+        if (stale != null) return stale;
+
+        long cursor;
+        Pattern pattern = null;
+        int count = Constants.SCAN_DEFAULT_COUNT;
+        try {
+            cursor = Long.parseLong(commandParts[1]);
+            for (int i = 2; i < commandParts.length; i += 2) {
+                switch (commandParts[i].toUpperCase()) {
+                    case "MATCH" -> pattern = globToPattern(commandParts[i + 1]);
+                    case "COUNT" -> count = Math.clamp(Long.parseLong(commandParts[i + 1]), 1, Constants.SCAN_MAX_COUNT);
+                    default -> {
+                        return usage;
                     }
                 }
-                default -> {
-                    output = "WRONG AVAILABLE ARE GET, SET, SETX, DEL, NOTIFY,BEGIN,COMMIT,LOGIN,REGISTER,WHOAMI";
-                    canReplicate = false;
-                }
             }
+        } catch (NumberFormatException e) {
+            return usage;
+        }
+
+        List<SaveItem> page = new ArrayList<>(count);
+        StringBuilder reply = new StringBuilder().append(database.scan(cursor, count, page));
+        for (SaveItem item : page) {
+            if (item.hasExpired()) {
+                expirer.expire(item.getKey());
+            } else if (pattern == null || pattern.matcher(item.getKey()).matches()) {
+                reply.append('\n').append(item.getKey());
+            }
+        }
+        return Reply.ok(reply.toString());
+    }
+
+    // CHANGES FROM <OFFSET> [COUNT <COUNT>] [BLOCK <MILLIS>], replies with the offset to read from next and then one
+    // change per line as its sequence number and the command that made it. BLOCK waits that long for a change when
+    // there is none yet, a consumer tails the log by always asking from the offset it got last
+    private Reply changes(String[] commandParts) throws Exception {
+        Reply usage = Reply.error("ERROR USAGE CHANGES FROM <OFFSET> [COUNT <COUNT>] [BLOCK <MILLIS>]");
+        if (commandParts.length < 3 || commandParts.length % 2 == 0 || !commandParts[1].equalsIgnoreCase("FROM")) return usage;
+        if (changeLog == null) {
+            return Reply.error("ERROR NO CHANGES ARE KEPT START THE SERVER WITH --changes-retention");
+        }
 
-            if (canReplicate) {
-                // replicate the command
-                List<Thread> replicationThreads = new ArrayList<>(replicas.size());
-
-                replicas.forEach(socketItem -> {
-                    Thread replThread = Thread.startVirtualThread(() -> {
-                        try {
-                            socketItem.getOutputStream().writeUTF(originalCommand);
-                        } catch (IOException e) {
-                            logger.info("Error occured when replicating " + e.getLocalizedMessage());
-                        }
-                    });
-                    replicationThreads.add(replThread);
-                });
-
-                if (Constants.IS_SYNCHRONOUS_REPLICATION) {
-                    // if this is synchronous we wait for every thread to finish the job and report back
-                    for (Thread t : replicationThreads) {
-                        t.join();
+        long from;
+        long block = 0;
+        int count = Constants.CHANGES_DEFAULT_COUNT;
+        try {
+            from = Long.parseLong(commandParts[2]);
+            for (int i = 3; i < commandParts.length; i += 2) {
+                switch (commandParts[i].toUpperCase()) {
+                    case "COUNT" -> count = Math.clamp(Long.parseLong(commandParts[i + 1]), 1, Constants.CHANGES_MAX_COUNT);
+                    case "BLOCK" -> block = Math.max(0, Long.parseLong(commandParts[i + 1]));
+                    default -> {
+                        return usage;
                     }
                 }
             }
+        } catch (NumberFormatException e) {
+            return usage;
+        }
 
-            return output;
-        } catch (Exception e) {
-            logger.info(e.getLocalizedMessage());
-            return null;
+        if (from > changeLog.getLastSequence() + 1) {
+            return Reply.error("ERROR OFFSET " + from + " IS AHEAD OF THE LAST CHANGE " + changeLog.getLastSequence());
         }
+        if (block > 0 && !changeLog.await(from, block)) {
+            return Reply.ok(Long.toString(from));
+        }
+
+        // a consumer this far behind has to start over from the current data
+        String expired = "ERROR OFFSET " + from + " IS NO LONGER KEPT OLDEST IS ";
+        if (from < changeLog.getFirstSequence()) {
+            return Reply.error(expired + changeLog.getFirstSequence());
+        }
+        List<ChangeLog.Change> changes = new ArrayList<>();
+        long next;
+        try {
+            next = changeLog.read(from, count, Constants.LISTING_CHUNK_SIZE, changes);
+        } catch (NoSuchFileException e) {
+            return Reply.error(expired + changeLog.getFirstSequence());   // dropped past the retention while it was read
+        }
+
+        StringBuilder reply = new StringBuilder().append(next);
+        for (ChangeLog.Change change : changes) {
+            SaveItem item = change.item();
+            reply.append('\n').append(change.sequence()).append(' ');
+            switch (item.getOperation()) {
+                case "D" -> reply.append("DEL ").append(escapeChange(item.getKey(), true));
+                case "SX" -> reply.append("SETX ").append(escapeChange(item.getKey(), true)).append(' ')
+                        .append(escapeChange(item.getValue(), false)).append(' ').append(item.getTtl());
+                default -> reply.append("SET ").append(escapeChange(item.getKey(), true)).append(' ')
+                        .append(escapeChange(item.getValue(), false));
+            }
+        }
+        return Reply.ok(reply.toString());
     }
 
-    private void cleanupNotifications() {
-        // Iterate through all notification entries
-        for (NotifyItem item : keySocketsMap.values()) {
-            // Remove this client's socketItem from the notification list
-            item.getSocketItems().removeIf(socket -> socket.getId().equals(socketItem.getId()));
+    // keeps a change on its one line, binary and resp clients can store newlines. A key also can't hold a plain space,
+    // the value starts after the first one
+    static String escapeChange(String text, boolean key) {
+        StringBuilder escaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '\\' -> escaped.append("\\\\");
+                case '\n' -> escaped.append("\\n");
+                case '\r' -> escaped.append("\\r");
+                case ' ' -> escaped.append(key ? "\\s" : " ");
+                default -> escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
 
-            // If no clients are left for this notification, remove the entire entry
-            if (item.getSocketItems().isEmpty()) {
-                keySocketsMap.remove(item.getKey());
+    // the * and ? of redis glob patterns, a backslash escapes the next character
+    static Pattern globToPattern(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            switch (c) {
+                case '*' -> regex.append(".*");
+                case '?' -> regex.append('.');
+                case '\\' -> {
+                    if (i + 1 < glob.length()) regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+                }
+                default -> regex.append(Pattern.quote(String.valueOf(c)));
             }
         }
+        return Pattern.compile(regex.toString(), Pattern.DOTALL);
+    }
+
+    // only the connection's own subscriptions are touched, however many keys others watch
+    void cleanupNotifications() {
+        socketItem.unsubscribe();
+        subscriptions.unsubscribeAll(socketItem);
     }
 }
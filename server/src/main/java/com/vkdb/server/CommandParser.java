@@ -0,0 +1,115 @@
+package com.vkdb.server;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/*
+ * Reads the text protocol's requests into a buffer kept for the connection, the same framing writeUTF produces
+ *
+ * a request is split at its spaces into offsets in the buffer, the command is looked up from the name bytes and
+ * strings are only made for the arguments. The argument arrays are reused per argument count as well, a handler
+ * that keeps a request around, like a transaction queueing it, has to copy the array
+ *
+ * requests are modified utf-8, plain ascii arguments skip the decoding. Like String.split(" ") two spaces in a row
+ * make an empty argument and spaces at the end are dropped
+ */
+public class CommandParser {
+    private static final int MAX_REUSED_ARGUMENTS = 8;
+
+    private final CommandTable commands;
+    private final String[][] reused = new String[MAX_REUSED_ARGUMENTS + 1][];
+    private byte[] buffer = new byte[1024];
+    private int[] starts = new int[MAX_REUSED_ARGUMENTS];
+    private int[] ends = new int[MAX_REUSED_ARGUMENTS];
+    private int count;
+    private CommandTable.Command command;
+
+    public CommandParser(CommandTable commands) {
+        this.commands = commands;
+        for (int i = 1; i <= MAX_REUSED_ARGUMENTS; i++) {
+            reused[i] = new String[i];
+        }
+    }
+
+    // blocks until the next request arrived, an EOFException once the client is gone like readUTF
+    public void read(DataInputStream in) throws IOException {
+        int length = in.readUnsignedShort();
+        if (buffer.length < length) {
+            buffer = new byte[Math.max(length, buffer.length * 2)];
+        }
+        in.readFully(buffer, 0, length);
+
+        count = 0;
+        int start = 0;
+        for (int i = 0; i <= length; i++) {
+            if (i == length || buffer[i] == ' ') {
+                add(start, i);
+                start = i + 1;
+            }
+        }
+        while (count > 1 && starts[count - 1] == ends[count - 1]) {
+            count--;
+        }
+        command = commands.lookup(buffer, starts[0], ends[0] - starts[0]);
+    }
+
+    // null when the request names no known command
+    public CommandTable.Command command() {
+        return command;
+    }
+
+    // the request split like String.split(" ") would, valid until the next read
+    public String[] args() throws UTFDataFormatException {
+        String[] args = count <= MAX_REUSED_ARGUMENTS ? reused[count] : new String[count];
+        args[0] = command != null ? command.name() : decode(0);
+        for (int i = 1; i < count; i++) {
+            args[i] = decode(i);
+        }
+        return args;
+    }
+
+    private void add(int start, int end) {
+        if (count == starts.length) {
+            starts = Arrays.copyOf(starts, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+        }
+        starts[count] = start;
+        ends[count] = end;
+        count++;
+    }
+
+    private String decode(int index) throws UTFDataFormatException {
+        int start = starts[index];
+        int end = ends[index];
+        for (int i = start; i < end; i++) {
+            if (buffer[i] < 0) return decodeModifiedUtf8(start, end);
+        }
+        return new String(buffer, start, end - start, StandardCharsets.ISO_8859_1);
+    }
+
+    // what readUTF does, two and three byte sequences with a surrogate pair written as two of the latter
+    private String decodeModifiedUtf8(int start, int end) throws UTFDataFormatException {
+        char[] chars = new char[end - start];
+        int length = 0;
+        int i = start;
+        while (i < end) {
+            int b = buffer[i] & 0xff;
+            if (b < 0x80) {
+                chars[length++] = (char) b;
+                i++;
+            } else if ((b & 0xe0) == 0xc0 && i + 1 < end && (buffer[i + 1] & 0xc0) == 0x80) {
+                chars[length++] = (char) (((b & 0x1f) << 6) | (buffer[i + 1] & 0x3f));
+                i += 2;
+            } else if ((b & 0xf0) == 0xe0 && i + 2 < end && (buffer[i + 1] & 0xc0) == 0x80 && (buffer[i + 2] & 0xc0) == 0x80) {
+                chars[length++] = (char) (((b & 0x0f) << 12) | ((buffer[i + 1] & 0x3f) << 6) | (buffer[i + 2] & 0x3f));
+                i += 3;
+            } else {
+                throw new UTFDataFormatException("Malformed input around byte " + i);
+            }
+        }
+        return new String(chars, 0, length);
+    }
+}
@@ -0,0 +1,72 @@
+package com.vkdb.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * The commands a client can send, looked up once per request instead of comparing the name against every case
+ *
+ * the names sit in an open addressing table hashed on their bytes, so the text parser finds a command straight from
+ * its read buffer without making a string for the name. Binary and resp requests already hold the name as a string
+ * and look it up in a map
+ */
+public class CommandTable {
+
+    @FunctionalInterface
+    public interface Handler {
+        Reply handle(ClientHandler client, String[] commandParts) throws Exception;
+    }
+
+    // replicated commands go to the replicas as they came in, the others only ever concern this server
+    public record Command(String name, Handler handler, boolean replicated, boolean beforeLogin) {
+    }
+
+    private final Command[] slots;
+    private final byte[][] names;
+    private final Map<String, Command> byName = new HashMap<>();
+
+    public CommandTable(Command... commands) {
+        int size = Integer.highestOneBit(Math.max(commands.length, 1) * 4);    // at most a quarter full, probes stay short
+        slots = new Command[size];
+        names = new byte[size][];
+        for (Command command : commands) {
+            byte[] name = command.name().getBytes(StandardCharsets.US_ASCII);
+            int slot = hash(name, 0, name.length) & (size - 1);
+            while (slots[slot] != null) {
+                slot = (slot + 1) & (size - 1);
+            }
+            slots[slot] = command;
+            names[slot] = name;
+            byName.put(command.name(), command);
+        }
+    }
+
+    public static Command command(String name, Handler handler, boolean replicated) {
+        return new Command(name, handler, replicated, false);
+    }
+
+    // null for a name that isn't a command
+    public Command lookup(String name) {
+        return byName.get(name);
+    }
+
+    public Command lookup(byte[] bytes, int offset, int length) {
+        int mask = slots.length - 1;
+        for (int slot = hash(bytes, offset, offset + length) & mask; slots[slot] != null; slot = (slot + 1) & mask) {
+            if (Arrays.equals(names[slot], 0, names[slot].length, bytes, offset, offset + length)) {
+                return slots[slot];
+            }
+        }
+        return null;
+    }
+
+    private static int hash(byte[] bytes, int from, int to) {
+        int hash = 0;
+        for (int i = from; i < to; i++) {
+            hash = hash * 31 + bytes[i];
+        }
+        return hash ^ (hash >>> 16);
+    }
+}
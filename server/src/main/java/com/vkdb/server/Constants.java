@@ -3,9 +3,48 @@ package com.vkdb.server;
 import java.nio.file.Path;
 
 public class Constants {
-    public static final Path APPEND_ONLY_LOG_FILE_PATH = Path.of("append-log.vdb");
-    public static final long CACHE_CHECK_INTERVAL = 10 * 1000L; // cache check interval
+    public static final Path APPEND_ONLY_LOG_FILE_PATH = Path.of("append-log.vdb");  // single file log of older versions, moved into the log directory
+    public static final Path LOG_DIRECTORY = Path.of("append-log");
+    public static final long SEGMENT_SIZE = 64L * 1024 * 1024;    // the active segment is sealed once it grows past this
+    public static final long EXPIRY_TICK = 100;     // resolution of the ttl timing wheel in millis
+    public static final int EXPIRY_BUDGET = 1000;   // most keys expired in one tick, the rest wait for the next ones
     public static final long COMPACTION_INTERVAL = 200 * 1000L;  // compaction interval
+    public static final double COMPACTION_GARBAGE_RATIO = 0.75;    // a lone segment is rewritten when that would shrink it below this share
     public static final Path USER_LIST_PATH = Path.of("users.vdb");
-    public static final boolean IS_SYNCHRONOUS_REPLICATION = false;
+    public static final String DEFAULT_REPL_BACKLOG_SIZE = "1mb";    // of the replication stream kept for replicas coming back
+    public static final Path REPL_SYNC_DIRECTORY = Path.of("repl-sync");    // dumps on their way to replicas doing a full sync
+    public static final long REPL_PING_INTERVAL = 1000;    // millis between the master's pings to its replicas
+    public static final long REPLICA_ACK_INTERVAL = 1000;    // a replica acknowledges at most this often unless the master asks
+    public static final long REPLICA_RECONNECT_DELAY = 1000;    // millis a replica waits before connecting to its master again
+    public static final int DISK_WRITE_QUEUE_CAPACITY = 16 * 1024;    // clients block on SET once this many writes are pending
+    public static final int DISK_WRITE_BATCH_SIZE = 1024;   // max items written to the log in one go
+    public static final String DEFAULT_FSYNC_POLICY = "everysec";
+    public static final String DEFAULT_STORE = "heap";
+    public static final String DEFAULT_MAX_MEMORY = "0";    // no limit
+    public static final String DEFAULT_EVICTION_POLICY = "noeviction";
+    public static final int EVICTION_SAMPLES = 5;   // keys looked at to pick one victim
+    public static final long EVICTION_AVERAGE_ENTRY_SIZE = 200;    // rough bytes per key, sizes the tinylfu sketch and window
+    public static final int SOCKET_BUFFER_SIZE = 64 * 1024;    // per connection, pipelined commands are read and answered in chunks this big
+    public static final String DEFAULT_OUTPUT_LIMIT_NORMAL = "0 0 0";    // hard, soft and seconds over soft of unsent output
+    public static final String DEFAULT_OUTPUT_LIMIT_SUBSCRIBER = "32mb 8mb 60";
+    public static final String DEFAULT_OUTPUT_LIMIT_REPLICA = "256mb 64mb 60";
+    public static final int NOTIFY_QUEUE_CAPACITY = 10_000;    // distinct keys waiting for one subscriber before it is cut off
+    public static final long OUTPUT_CLOSE_TIMEOUT = 1000;    // millis a closing connection gets to take its last replies
+    public static final int SCAN_DEFAULT_COUNT = 10;
+    public static final int SCAN_MAX_COUNT = 1000;
+    public static final int SCAN_PAGE_SIZE = 256;   // keys fetched at a time when KEYS and ALL walk the store
+    public static final int LISTING_CHUNK_SIZE = 16 * 1024;    // chars per KEYS or ALL reply chunk, a larger entry goes alone
+    public static final int MAX_TEXT_FRAME_SIZE = 65535;    // bytes of modified utf-8 writeUTF sends at most
+    public static final int MAX_FRAME_SIZE = 1024 * 1024;    // binary protocol, larger messages are split into frames
+    public static final int MAX_REQUEST_SIZE = 512 * 1024 * 1024;    // binary protocol, a client sending more is disconnected
+    public static final long SNAPSHOT_INTERVAL = 300 * 1000L;    // how often a snapshot is taken when there were writes
+    public static final int SNAPSHOTS_TO_KEEP = 2;
+    public static final Path CHANGES_DIRECTORY = Path.of("changes");
+    public static final String DEFAULT_CHANGES_RETENTION = "0";    // seconds the change log keeps a change, 0 keeps no change log
+    public static final long CHANGES_SEGMENT_SIZE = 16L * 1024 * 1024;    // a change log file is sealed once it grows past this
+    public static final int CHANGES_INDEX_INTERVAL = 64 * 1024;    // bytes of changes between two entries of a file's sparse index
+    public static final int CHANGES_READ_SIZE = 256 * 1024;    // most bytes of a change log file read at a time
+    public static final int CHANGES_DEFAULT_COUNT = 100;
+    public static final int CHANGES_MAX_COUNT = 1000;
+    public static final long REPLAY_CHUNK_SIZE = 64L * 1024 * 1024;    // size of the log slices parsed in parallel on startup
 }
\ No newline at end of file
@@ -0,0 +1,263 @@
+package com.vkdb.server;
+
+import java.util.ArrayDeque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/*
+ * Keeps the store under the maxmemory budget by evicting keys before a write goes in
+ *
+ * victims are picked from a few randomly sampled keys like redis does, so making room never walks the keyspace.
+ * Evicted keys are written to the append only log as deletes so a restart doesn't bring them back, and sent to the
+ * replicas as deletes so they don't keep what the master let go
+ */
+public class Evictor {
+    private static final Logger logger = Logger.getLogger(Evictor.class.getName());
+
+    public static final int INITIAL_FREQUENCY = 5;
+    private static final int MAX_FREQUENCY = 255;
+    private static final int FREQUENCY_LOG_FACTOR = 10;
+    private static final long FREQUENCY_DECAY_TIME = 60 * 1000L;   // a counter loses one for every minute the key sits idle
+    private static final int SAMPLE_ROUNDS = 3;   // tries before giving up on finding a victim
+
+    public enum Policy {
+        NOEVICTION, ALLKEYS_LRU, ALLKEYS_LFU, VOLATILE_TTL, TINYLFU;
+
+        public static Policy parse(String value) {
+            return Policy.valueOf(value.trim().toUpperCase().replace('-', '_'));
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase().replace('_', '-');
+        }
+    }
+
+    private record WindowEntry(String key, long size) {
+    }
+
+    private final Store database;
+    private final BlockingQueue<SaveItem> diskWriteItems;
+    private final Replication replication;
+    private final long maxMemory;
+    private final Policy policy;
+    private final AtomicLong evictedKeys = new AtomicLong();
+    private final FrequencySketch sketch;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // w-tinylfu only, recently added keys wait here before they have to compete with the rest by frequency
+    private final ArrayDeque<WindowEntry> window = new ArrayDeque<>();
+    private final Set<String> windowKeys = new HashSet<>();
+    private long windowBytes = 0;
+
+    public Evictor(Store database, BlockingQueue<SaveItem> diskWriteItems, Replication replication, long maxMemory, Policy policy) {
+        this.database = database;
+        this.diskWriteItems = diskWriteItems;
+        this.replication = replication;
+        this.maxMemory = maxMemory;
+        this.policy = policy;
+        this.sketch = policy == Policy.TINYLFU ? new FrequencySketch(maxMemory / Constants.EVICTION_AVERAGE_ENTRY_SIZE) : null;
+    }
+
+    // evicts until the store fits the budget again, false when the write has to be refused
+    // a lock instead of synchronized, a virtual thread parking on the store locks inside a monitor would pin its carrier
+    public boolean makeRoom() throws InterruptedException {
+        if (maxMemory <= 0) return true;
+
+        // the writes lock first, the one a write making room already holds
+        replication.lockWrites();
+        lock.lock();
+        try {
+            while (database.memoryUsage() > maxMemory) {
+                SaveItem victim = switch (policy) {
+                    case NOEVICTION -> null;
+                    case ALLKEYS_LRU, ALLKEYS_LFU, VOLATILE_TTL -> sampleVictim();
+                    case TINYLFU -> tinyLfuVictim();
+                };
+                if (victim == null) return false;
+
+                SaveItem removed = database.remove(victim.getKey());
+                if (removed != null) {
+                    diskWriteItems.put(new SaveItem(removed.getKey(), removed.getValue(), "D"));
+                    replication.propagate(new String[]{"DEL", removed.getKey()});
+                    evictedKeys.incrementAndGet();
+                    logger.fine("Evicted key " + removed.getKey() + " with policy " + policy);
+                }
+            }
+            return true;
+        } finally {
+            lock.unlock();
+            replication.unlockWrites();
+        }
+    }
+
+    public void recordRead(String key) {
+        if (sketch != null) sketch.increment(key.hashCode());
+    }
+
+    public void recordWrite(String key, SaveItem item) {
+        if (sketch == null) return;
+
+        sketch.increment(key.hashCode());
+        lock.lock();
+        try {
+            if (windowKeys.add(key)) {
+                long size = Constants.EVICTION_AVERAGE_ENTRY_SIZE + key.length() + item.getValue().length();
+                window.addLast(new WindowEntry(key, size));
+                windowBytes += size;
+            }
+
+            // while there is room the oldest window keys move to the main space without having to compete
+            while (windowBytes > maxMemory / 100 && database.memoryUsage() <= maxMemory) {
+                WindowEntry entry = window.pollFirst();
+                windowKeys.remove(entry.key());
+                windowBytes -= entry.size();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getEvictedKeys() {
+        return evictedKeys.get();
+    }
+
+    public long getMaxMemory() {
+        return maxMemory;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    // the best of a few random keys, idle the longest for lru, least used for lfu and closest to expiring for ttl
+    private SaveItem sampleVictim() {
+        for (int round = 0; round < SAMPLE_ROUNDS; round++) {
+            SaveItem best = null;
+            for (SaveItem item : database.sample(Constants.EVICTION_SAMPLES)) {
+                if (policy == Policy.VOLATILE_TTL && item.getTtl() == null) continue;
+                if (best == null || score(item) < score(best)) best = item;
+            }
+            if (best != null) return best;
+        }
+        return null; // nothing this policy may evict turned up, like no key with a ttl for volatile-ttl
+    }
+
+    private long score(SaveItem item) {
+        return switch (policy) {
+            case ALLKEYS_LRU -> item.getLastAccess();
+            case ALLKEYS_LFU -> decayFrequency(item.getFrequency(), item.getLastAccess());
+            case VOLATILE_TTL -> item.getTtl();
+            default -> 0;
+        };
+    }
+
+    // the oldest key leaving the window only gets into the main space when it is used more often than the key it replaces
+    private SaveItem tinyLfuVictim() {
+        SaveItem candidate = null;
+        while (candidate == null && windowBytes > maxMemory / 100 && !window.isEmpty()) {
+            WindowEntry entry = window.pollFirst();
+            windowKeys.remove(entry.key());
+            windowBytes -= entry.size();
+            candidate = database.peek(entry.key());
+        }
+
+        SaveItem victim = null;
+        for (SaveItem item : database.sample(Constants.EVICTION_SAMPLES)) {
+            if (windowKeys.contains(item.getKey()) || (candidate != null && item.getKey().equals(candidate.getKey()))) continue;
+            if (victim == null || sketch.frequency(item.getKey().hashCode()) < sketch.frequency(victim.getKey().hashCode())) {
+                victim = item;
+            }
+        }
+
+        if (candidate == null) return victim;
+        if (victim == null) return candidate;
+        return sketch.frequency(candidate.getKey().hashCode()) > sketch.frequency(victim.getKey().hashCode()) ? victim : candidate;
+    }
+
+    // logarithmic counter like redis, the more a key is used the less likely another use moves it
+    public static int incrementFrequency(int frequency) {
+        if (frequency >= MAX_FREQUENCY) return MAX_FREQUENCY;
+        double probability = 1.0 / (Math.max(frequency - INITIAL_FREQUENCY, 0) * FREQUENCY_LOG_FACTOR + 1);
+        return ThreadLocalRandom.current().nextDouble() < probability ? frequency + 1 : frequency;
+    }
+
+    public static int decayFrequency(int frequency, long lastAccess) {
+        long periods = (System.currentTimeMillis() - lastAccess) / FREQUENCY_DECAY_TIME;
+        return (int) Math.max(0, frequency - periods);
+    }
+
+    // accepts sizes like 1048576, 512mb or 2gb
+    public static long parseMemory(String value) {
+        String text = value.trim().toLowerCase();
+        long multiplier = 1;
+        if (text.endsWith("gb") || text.endsWith("g")) multiplier = 1024L * 1024 * 1024;
+        else if (text.endsWith("mb") || text.endsWith("m")) multiplier = 1024L * 1024;
+        else if (text.endsWith("kb") || text.endsWith("k")) multiplier = 1024L;
+        return Long.parseLong(text.replaceAll("[a-z]", "")) * multiplier;
+    }
+
+    /*
+     * Count min sketch of 4 bit counters estimating how often a key was used recently, 16 counters share a long and
+     * every key has one counter in each of 4 rows. All counters are halved once enough accesses were counted, so old
+     * popularity fades away
+     */
+    static class FrequencySketch {
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private static final long RESET_MASK = 0x7777777777777777L;
+
+        private final long[] table;
+        private final int sampleSize;
+        private int additions = 0;
+
+        FrequencySketch(long expectedEntries) {
+            int length = Integer.highestOneBit(Math.clamp(expectedEntries, 64, 1 << 22) - 1) << 1;
+            this.table = new long[length];
+            this.sampleSize = 10 * length;
+        }
+
+        synchronized int frequency(int hash) {
+            int frequency = Integer.MAX_VALUE;
+            for (int row = 0; row < 4; row++) {
+                frequency = Math.min(frequency, (int) ((table[indexOf(hash, row)] >>> shiftOf(hash, row)) & 0xfL));
+            }
+            return frequency;
+        }
+
+        synchronized void increment(int hash) {
+            boolean added = false;
+            for (int row = 0; row < 4; row++) {
+                int index = indexOf(hash, row);
+                int shift = shiftOf(hash, row);
+                if (((table[index] >>> shift) & 0xfL) < 15) {
+                    table[index] += 1L << shift;
+                    added = true;
+                }
+            }
+
+            if (added && ++additions >= sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                }
+                additions /= 2;
+            }
+        }
+
+        private int indexOf(int hash, int row) {
+            long h = (hash + SEEDS[row]) * SEEDS[row];
+            h += h >>> 32;
+            return (int) h & (table.length - 1);
+        }
+
+        // every row uses its own group of 4 counters inside the long
+        private static int shiftOf(int hash, int row) {
+            return ((row << 2) + ((hash >>> (row << 1)) & 3)) << 2;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.vkdb.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/*
+ * Deletes keys once their ttl has passed without walking the keyspace
+ *
+ * a hierarchical timing wheel holds one timer per key with a ttl, 4 levels of 64 slots where a slot of level n spans
+ * 64^n ticks. Every tick the slots that come due are cascaded into the finer levels, the due timers of level 0 wait
+ * in a queue and at most EXPIRY_BUDGET of them are handled per tick, so a burst of expiring keys is spread out
+ *
+ * timers are never cancelled, a key written again or deleted meanwhile is simply not expired when its old timer fires.
+ * Reads expire keys on their own as well, either way the delete goes to the append only log and to the replicas
+ */
+public class Expirer implements Runnable {
+    private static final Logger logger = Logger.getLogger(Expirer.class.getName());
+    private static final int WHEEL_BITS = 6;
+    private static final int WHEEL_SIZE = 1 << WHEEL_BITS;
+    private static final int LEVELS = 4;
+
+    private record Timer(String key, long tick) {
+    }
+
+    private final Store database;
+    private final BlockingQueue<SaveItem> diskWriteItems;
+    private final Replication replication;
+    private final AtomicLong expiredKeys = new AtomicLong();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final List<List<Timer>> slots = new ArrayList<>(LEVELS * WHEEL_SIZE);
+    private final List<Timer> overflow = new ArrayList<>();     // further out than the whole wheel
+    private final ArrayDeque<Timer> due = new ArrayDeque<>();
+    private long currentTick = System.currentTimeMillis() / Constants.EXPIRY_TICK;
+
+    public Expirer(Store database, BlockingQueue<SaveItem> diskWriteItems, Replication replication) {
+        this.database = database;
+        this.diskWriteItems = diskWriteItems;
+        this.replication = replication;
+        for (int i = 0; i < LEVELS * WHEEL_SIZE; i++) {
+            slots.add(new ArrayList<>());
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (true) {
+                Thread.sleep(Constants.EXPIRY_TICK);
+
+                for (String key : advance(System.currentTimeMillis() / Constants.EXPIRY_TICK)) {
+                    expire(key);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    public void schedule(String key, long expiresAt) {
+        lock.lock();
+        try {
+            place(new Timer(key, expiresAt / Constants.EXPIRY_TICK + 1));   // the first tick that starts after the ttl
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // deletes the key if its ttl has passed, true when it was expired here
+    public boolean expire(String key) throws InterruptedException {
+        replication.lockWrites();
+        try {
+            SaveItem item = database.removeExpired(key);
+            if (item == null) return false;
+
+            diskWriteItems.put(new SaveItem(key, item.getValue(), "D"));
+            replication.propagate(new String[]{"DEL", key});
+        } finally {
+            replication.unlockWrites();
+        }
+        expiredKeys.incrementAndGet();
+        logger.fine("key : " + key + " expired , removed it");
+        return true;
+    }
+
+    public long getExpiredKeys() {
+        return expiredKeys.get();
+    }
+
+    // moves the wheel up to the given tick and hands out the next batch of due keys
+    private List<String> advance(long tick) {
+        lock.lock();
+        try {
+            while (currentTick < tick) {
+                currentTick++;
+                if ((currentTick & ((1L << (WHEEL_BITS * LEVELS)) - 1)) == 0) {
+                    List<Timer> timers = new ArrayList<>(overflow);
+                    overflow.clear();
+                    timers.forEach(this::place);
+                }
+                // coarser levels first, what they cascade may land in a finer slot that is due this very tick
+                for (int level = LEVELS - 1; level >= 0; level--) {
+                    if ((currentTick & ((1L << (WHEEL_BITS * level)) - 1)) != 0) continue;
+
+                    List<Timer> slot = slots.get(slotIndex(level, currentTick));
+                    if (slot.isEmpty()) continue;
+                    List<Timer> timers = new ArrayList<>(slot);
+                    slot.clear();
+                    timers.forEach(this::place);
+                }
+            }
+
+            List<String> keys = new ArrayList<>(Math.min(due.size(), Constants.EXPIRY_BUDGET));
+            while (keys.size() < Constants.EXPIRY_BUDGET && !due.isEmpty()) {
+                keys.add(due.poll().key());
+            }
+            return keys;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // a timer goes to the finest level whose slots still cover its tick from where the wheel stands now
+    private void place(Timer timer) {
+        if (timer.tick() <= currentTick) {
+            due.add(timer);
+            return;
+        }
+        for (int level = 0; level < LEVELS; level++) {
+            if (timer.tick() >>> (WHEEL_BITS * (level + 1)) == currentTick >>> (WHEEL_BITS * (level + 1))) {
+                slots.get(slotIndex(level, timer.tick())).add(timer);
+                return;
+            }
+        }
+        overflow.add(timer);
+    }
+
+    private static int slotIndex(int level, long tick) {
+        return level * WHEEL_SIZE + (int) ((tick >>> (WHEEL_BITS * level)) & (WHEEL_SIZE - 1));
+    }
+}
@@ -0,0 +1,152 @@
+package com.vkdb.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+// The default store, one SaveItem per key in a concurrent map
+public class HeapStore implements Store {
+    private static final int ENTRY_OVERHEAD = 160;  // map node, SaveItem and the two String objects around the bytes
+
+    private record BinRange(Spliterator<SaveItem> spliterator, long start, long size) {
+    }
+
+    private final ConcurrentHashMap<String, SaveItem> items = new ConcurrentHashMap<>();
+    private final AtomicLong memoryUsage = new AtomicLong();
+
+    @Override
+    public SaveItem get(String key) {
+        SaveItem item = items.get(key);
+        if (item != null) item.touch();
+        return item;
+    }
+
+    @Override
+    public SaveItem peek(String key) {
+        return items.get(key);
+    }
+
+    @Override
+    public void put(String key, SaveItem item) {
+        SaveItem previous = items.put(key, item);
+        if (previous != null) {
+            item.setFrequency(previous.getFrequency()); // overwriting a key keeps how popular it was
+        }
+        item.touch();
+        memoryUsage.addAndGet(sizeOf(item) - (previous == null ? 0 : sizeOf(previous)));
+    }
+
+    @Override
+    public SaveItem remove(String key) {
+        SaveItem item = items.remove(key);
+        if (item != null) memoryUsage.addAndGet(-sizeOf(item));
+        return item;
+    }
+
+    @Override
+    public SaveItem removeExpired(String key) {
+        SaveItem item = items.get(key);
+        if (item == null || !item.hasExpired() || !items.remove(key, item)) return null;
+        memoryUsage.addAndGet(-sizeOf(item));
+        return item;
+    }
+
+    @Override
+    public void markWritten(String key, long segmentId) {
+        SaveItem item = items.get(key);
+        if (item != null && item.getSegmentId() < segmentId) {
+            item.setSegmentId(segmentId);
+        }
+    }
+
+    @Override
+    public Iterable<SaveItem> values() {
+        return items.values();
+    }
+
+    // the cursor is a bin index of the map's table. Splitting the spliterator halves its index range, so a depth first
+    // walk over the splits visits the bins in index order. The table only grows and then a bin's entries move to the
+    // same or a higher index, so going on from the same index after a resize misses nothing
+    @Override
+    public long scan(long cursor, int count, List<SaveItem> into) {
+        // the leftmost descent gives the table size, the upper halves split off on the way cover the rest of it
+        List<Spliterator<SaveItem>> uppers = new ArrayList<>();
+        Spliterator<SaveItem> first = items.values().spliterator();
+        for (Spliterator<SaveItem> upper = first.trySplit(); upper != null; upper = first.trySplit()) {
+            uppers.add(upper);
+        }
+        long bins = 1L << uppers.size();
+        if (cursor < 0 || cursor >= bins) return 0;
+
+        ArrayDeque<BinRange> pending = new ArrayDeque<>();
+        for (int i = 0; i < uppers.size(); i++) {
+            long start = bins >>> (i + 1);
+            if (start * 2 > cursor) pending.push(new BinRange(uppers.get(i), start, start));
+        }
+        pending.push(new BinRange(first, 0, 1));
+
+        int found = 0;
+        long visited = 0;
+        while (!pending.isEmpty()) {
+            BinRange range = pending.pop();
+            if (range.start() + range.size() <= cursor) continue;
+
+            if (range.size() > 1) {
+                Spliterator<SaveItem> upper = range.spliterator().trySplit();
+                long half = range.size() / 2;
+                pending.push(new BinRange(upper, range.start() + half, half));
+                pending.push(new BinRange(range.spliterator(), range.start(), half));
+                continue;
+            }
+
+            if (found >= count || visited >= count * 10L) return range.start();  // always stopping between bins
+            while (range.spliterator().tryAdvance(into::add)) {
+                found++;
+            }
+            visited++;
+        }
+        return 0;
+    }
+
+    // splitting the map's spliterator halves its table range, a random walk down the splits lands on a single random
+    // bin after about log n steps without visiting anything on the way, empty bins are just tried again
+    @Override
+    public List<SaveItem> sample(int count) {
+        List<SaveItem> sample = new ArrayList<>(count);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int attempt = 0; attempt < count * 8 && sample.size() < count; attempt++) {
+            Spliterator<SaveItem> spliterator = items.values().spliterator();
+            while (true) {
+                Spliterator<SaveItem> other = spliterator.trySplit();
+                if (other == null) break;
+                if (random.nextBoolean()) spliterator = other;
+            }
+            spliterator.forEachRemaining(sample::add);
+        }
+        return sample;
+    }
+
+    @Override
+    public int size() {
+        return items.size();
+    }
+
+    @Override
+    public long memoryUsage() {
+        return memoryUsage.get();
+    }
+
+    @Override
+    public void clear() {
+        items.clear();
+        memoryUsage.set(0);
+    }
+
+    private static long sizeOf(SaveItem item) {
+        return ENTRY_OVERHEAD + item.getKey().length() + (item.getValue() == null ? 0 : item.getValue().length());
+    }
+}
@@ -0,0 +1,85 @@
+package com.vkdb.server;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Logger;
+
+// One time converter from the old text log (S=key=value lines) to the binary format
+public class LogConverter {
+    private static final Logger logger = Logger.getLogger(LogConverter.class.getName());
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            args = new String[]{Constants.APPEND_ONLY_LOG_FILE_PATH.toString()};
+        }
+
+        for (String arg : args) {
+            try {
+                if (!convertIfLegacy(Path.of(arg))) {
+                    logger.info(arg + " is already in the binary format, skipping");
+                }
+            } catch (IOException e) {
+                logger.severe("Could not convert " + arg + " : " + e.getLocalizedMessage());
+            }
+        }
+    }
+
+    // converts the file in place and keeps the original next to it with a .legacy suffix
+    public static boolean convertIfLegacy(Path path) throws IOException {
+        if (!isLegacy(path)) return false;
+
+        Path converted = path.resolveSibling(path.getFileName() + ".converting");
+        Path backup = path.resolveSibling(path.getFileName() + ".legacy");
+        int records = 0;
+        int skipped = 0;
+
+        try (BufferedReader reader = Files.newBufferedReader(path);
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(converted))) {
+            out.write(LogRecord.header(System.currentTimeMillis()));
+
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // the old format can't tell a separator from an = inside the key or value, so those lines stay lost
+                String[] parts = line.trim().split("=");
+                if (parts.length != 3 || !(parts[0].equals("S") || parts[0].equals("SX") || parts[0].equals("D"))) {
+                    if (!line.isBlank()) skipped++;
+                    continue;
+                }
+
+                // the old format never stored the expiry, such keys come back as permanent like they always did
+                String operation = parts[0].equals("SX") ? "S" : parts[0];
+                out.write(LogRecord.encode(new SaveItem(parts[1], parts[2], operation)));
+                records++;
+            }
+        }
+
+        try (FileChannel channel = FileChannel.open(converted, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.copy(path, backup, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(converted, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        logger.info("Converted " + path.toAbsolutePath() + " to the binary format, " + records + " records, "
+                + skipped + " malformed lines skipped, original kept at " + backup.toAbsolutePath());
+        return true;
+    }
+
+    private static boolean isLegacy(Path path) throws IOException {
+        if (!Files.exists(path) || Files.size(path) == 0) return false;
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer head = ByteBuffer.allocate(LogRecord.HEADER_SIZE);
+            while (head.hasRemaining() && channel.read(head) > 0) ;
+            head.flip();
+            return !LogRecord.hasHeader(head);
+        }
+    }
+}
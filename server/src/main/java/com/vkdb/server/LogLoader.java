@@ -0,0 +1,212 @@
+package com.vkdb.server;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+// Replays log records into the database by parsing record aligned chunks of the mapped file in parallel,
+// used for the append only log and for the body of snapshot files which share the record format
+public class LogLoader {
+    private static final Logger logger = Logger.getLogger(LogLoader.class.getName());
+    private static final long WALK_WINDOW_SIZE = 1L << 30;
+
+    private final Path path;
+    private final Store database;
+    private final long segmentId;
+    private final int parallelism;
+
+    public LogLoader(Path path, Store database) {
+        this(path, database, -1);
+    }
+
+    // items loaded from a log segment remember it, so compaction can tell which sealed records are superseded
+    public LogLoader(Path path, Store database, long segmentId) {
+        this.path = path;
+        this.database = database;
+        this.segmentId = segmentId;
+        this.parallelism = Math.max(1, Runtime.getRuntime().availableProcessors());
+    }
+
+    private record Chunk(long start, long end) {
+    }
+
+    public static class ReplayResult {
+        long records = 0;
+        long validOffset;
+        boolean torn;
+        boolean corrupt;
+
+        public long getRecords() {
+            return records;
+        }
+
+        public long getValidOffset() {
+            return validOffset;
+        }
+
+        public boolean isClean() {
+            return !torn && !corrupt;
+        }
+    }
+
+    private static class ChunkResult extends ReplayResult {
+        private final Map<String, SaveItem> latest = new HashMap<>();
+    }
+
+    // replays one log segment, a bad record is only expected at the end of the active segment after a crash
+    public void load(boolean activeSegment) throws IOException {
+        logger.info("Reading the append only log file at : " + path.toAbsolutePath());
+        long startTime = System.currentTimeMillis();
+
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long size = channel.size();
+            if (size == 0) return;
+
+            MappedByteBuffer head = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, LogRecord.HEADER_SIZE));
+            if (!LogRecord.hasHeader(head)) {
+                throw new IOException("Append only log has no valid header, refusing to load it");
+            }
+
+            ReplayResult result = replay(channel, LogRecord.HEADER_SIZE, size);
+            if (!result.isClean() && !activeSegment) {
+                throw new IOException("Sealed segment " + path.getFileName() + " has a " + (result.torn ? "torn" : "corrupt")
+                        + " record at offset " + result.validOffset + ", refusing to start with a hole in the log");
+            }
+            if (!result.isClean()) {
+                // only an unfinished write at the end is cut off, like redis does with a truncated aof. A bad record
+                // with more of the log after it is damage to what was written before, loading around it would lose writes
+                if (!LogReader.isTail(channel, result.validOffset, size)) {
+                    throw new IOException("Append only log " + path.getFileName() + " has a bad record at offset "
+                            + result.validOffset + " with " + (size - result.validOffset) + " bytes after it, refusing to start");
+                }
+                logger.warning("Append only log ends in an unfinished record at offset " + result.validOffset + ", truncating "
+                        + (size - result.validOffset) + " bytes");
+                channel.truncate(result.validOffset);
+            }
+
+            long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+            logger.info("Reading completed saved : " + database.size() + " entries from " + result.records + " records in "
+                    + elapsed + " ms (" + (result.records * 1000 / elapsed) + " records/s)");
+        }
+    }
+
+    // applies the records between start and end to the database, stopping at the first bad record
+    public ReplayResult replay(FileChannel channel, long start, long end) throws IOException {
+        List<Chunk> chunks = splitIntoChunks(channel, start, end);
+        logger.info("Replaying " + ((end - start) >> 20) + " MB of " + path.getFileName() + " in " + chunks.size()
+                + " chunks with " + parallelism + " threads");
+
+        ReplayResult total = new ReplayResult();
+        total.validOffset = start;
+        long lastProgressLog = System.currentTimeMillis();
+        ArrayDeque<Future<ChunkResult>> inFlight = new ArrayDeque<>();
+        int nextChunk = 0;
+
+        try (ExecutorService executor = Executors.newFixedThreadPool(parallelism)) {
+            for (int merged = 0; merged < chunks.size(); merged++) {
+                // keeping a bounded number of parsed chunks around so a huge log doesn't need twice the heap
+                while (nextChunk < chunks.size() && inFlight.size() < parallelism * 2) {
+                    Chunk chunk = chunks.get(nextChunk++);
+                    inFlight.addLast(executor.submit(() -> parseChunk(channel, chunk)));
+                }
+
+                ChunkResult result = inFlight.removeFirst().get();
+                mergeChunk(result);
+                total.records += result.records;
+                total.validOffset = result.validOffset;
+
+                if (result.torn || result.corrupt) {
+                    inFlight.forEach(future -> future.cancel(true));
+                    total.torn = result.torn;
+                    total.corrupt = result.corrupt;
+                    break;
+                }
+
+                long now = System.currentTimeMillis();
+                if (now - lastProgressLog >= 1000) {
+                    lastProgressLog = now;
+                    logger.info("Replayed " + (merged + 1) + "/" + chunks.size() + " chunks, " + total.records + " records, "
+                            + database.size() + " keys");
+                }
+            }
+        } catch (Exception e) {
+            throw new IOException("Could not replay " + path.getFileName(), e);
+        }
+
+        return total;
+    }
+
+    // walks the length prefixes only, the chunk boundaries always fall between two records
+    private List<Chunk> splitIntoChunks(FileChannel channel, long start, long end) throws IOException {
+        List<Chunk> chunks = new ArrayList<>();
+        long chunkStart = start;
+        long position = chunkStart;
+
+        MappedByteBuffer window = null;
+        long windowStart = 0;
+
+        while (position + 4 <= end) {
+            if (window == null || position + 4 > windowStart + window.limit()) {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, Math.min(WALK_WINDOW_SIZE, end - windowStart));
+            }
+
+            int length = window.getInt((int) (position - windowStart));
+            if (length < LogRecord.FIXED_BODY_SIZE || position + 8 + length > end) {
+                break; // the last chunk keeps the bad tail, its parser reports where it went wrong
+            }
+
+            position += 8 + length;
+            if (position - chunkStart >= Constants.REPLAY_CHUNK_SIZE) {
+                chunks.add(new Chunk(chunkStart, position));
+                chunkStart = position;
+            }
+        }
+
+        if (chunkStart < end) {
+            chunks.add(new Chunk(chunkStart, end));
+        }
+        return chunks;
+    }
+
+    private ChunkResult parseChunk(FileChannel channel, Chunk chunk) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunk.start(), chunk.end() - chunk.start());
+        LogReader reader = new LogReader(buffer, chunk.start());
+        ChunkResult result = new ChunkResult();
+
+        // within a chunk the later record for a key wins, deletes are kept so they can win over earlier chunks
+        SaveItem item;
+        while ((item = reader.next()) != null) {
+            result.latest.put(item.getKey(), item);
+            result.records++;
+        }
+
+        result.validOffset = reader.getValidOffset();
+        result.torn = reader.isTorn();
+        result.corrupt = reader.isCorrupt();
+        return result;
+    }
+
+    // chunks are merged in file order so the later chunk wins for a key
+    private void mergeChunk(ChunkResult result) {
+        for (SaveItem item : result.latest.values()) {
+            if (item.getOperation().equals("D") || item.hasExpired()) {
+                database.remove(item.getKey());
+            } else {
+                item.setSegmentId(segmentId);
+                database.put(item.getKey(), item);
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.vkdb.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.zip.CRC32C;
+
+// Reads records one by one from a buffer holding the append only log, stops at the first record it can't trust.
+// The records of a batch are handed out one by one as well, but only once the whole batch checked out, and so are the
+// records a change of the change log wraps
+public class LogReader {
+    private final ByteBuffer buffer;
+    private final long baseOffset;
+    private final CRC32C crc = new CRC32C();
+    private final ArrayDeque<SaveItem> pending = new ArrayDeque<>();   // the rest of the batch read last
+    private byte[] scratch = new byte[256];
+    private boolean torn = false;
+    private boolean corrupt = false;
+    private long sequence = -1;
+
+    public LogReader(ByteBuffer buffer, long baseOffset) {
+        this.buffer = buffer;
+        this.baseOffset = baseOffset;
+    }
+
+    public SaveItem next() {
+        if (!pending.isEmpty()) return pending.poll();
+
+        int start = buffer.position();
+        int remaining = buffer.remaining();
+        if (remaining == 0) return null;
+
+        if (remaining < 4) {
+            torn = true;
+            return null;
+        }
+
+        int length = buffer.getInt(start);
+        if (length < LogRecord.FIXED_BODY_SIZE) {
+            corrupt = true;
+            return null;
+        }
+        if ((long) length + 8 > remaining) {
+            // the length points past the end, the last write never finished
+            torn = true;
+            return null;
+        }
+
+        crc.reset();
+        crc.update(buffer.slice(start, 4 + length));
+        if ((int) crc.getValue() != buffer.getInt(start + 4 + length)) {
+            corrupt = true;
+            return null;
+        }
+
+        String operation = LogRecord.operation(buffer.get(start + 4));
+        long expiresAt = buffer.getLong(start + 5);
+        int keyLength = buffer.getInt(start + 13);
+        int valueLength = length - LogRecord.FIXED_BODY_SIZE - keyLength;
+        if (operation == null || keyLength < 0 || valueLength < 0) {
+            corrupt = true;
+            return null;
+        }
+
+        if (operation.equals("C")) {
+            sequence = expiresAt;
+        }
+        if (operation.equals("B") || operation.equals("C")) {
+            return nextInBatch(start + 17 + keyLength, valueLength, start + 8 + length);
+        }
+
+        String key = readString(start + 17, keyLength);
+        String value = readString(start + 17 + keyLength, valueLength);
+        buffer.position(start + 8 + length);
+
+        return switch (operation) {
+            case "SX" -> SaveItem.withExpiry(key, value, operation, expiresAt);
+            default -> new SaveItem(key, value, operation);
+        };
+    }
+
+    private SaveItem nextInBatch(int recordsOffset, int recordsLength, int end) {
+        LogReader records = new LogReader(buffer.slice(recordsOffset, recordsLength), 0);
+        SaveItem item;
+        while ((item = records.next()) != null) {
+            pending.add(item);
+        }
+        if (records.isTorn() || records.isCorrupt()) {
+            pending.clear();
+            corrupt = true;
+            return null;
+        }
+
+        buffer.position(end);
+        return next();
+    }
+
+    // of the change the last item came from, -1 outside the change log
+    public long getSequence() {
+        return sequence;
+    }
+
+    // offset in the file right after the last record that was read successfully
+    public long getValidOffset() {
+        return baseOffset + buffer.position();
+    }
+
+    // the tail ends in the middle of a record, usually a crash during a write
+    public boolean isTorn() {
+        return torn;
+    }
+
+    // a record is there but its checksum or fields don't add up
+    public boolean isCorrupt() {
+        return corrupt;
+    }
+
+    // whether the bad record at the offset is the last thing in the file, as a crash in the middle of a write leaves it.
+    // A flipped bit in a length can make a record look cut short as well, so it only counts as the tail when no whole
+    // record follows it anywhere. The whole records a batch or change cut short still holds don't count
+    public static boolean isTail(FileChannel channel, long offset, long size) throws IOException {
+        if (size - offset < 4) return true;
+        long length = Math.min(size - offset, Integer.MAX_VALUE);
+        ByteBuffer rest = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        CRC32C crc = new CRC32C();
+        int last = rest.limit() - LogRecord.OVERHEAD;
+        for (int position = Math.max(1, wholeRecordsEnd(rest, 0, crc)); position <= last; position++) {
+            if (isRecord(rest, position, crc)) return false;
+        }
+        return true;
+    }
+
+    // where the whole records from the position on run out, going into the records of a batch or change cut short
+    private static int wholeRecordsEnd(ByteBuffer buffer, int position, CRC32C crc) {
+        while (isRecord(buffer, position, crc)) {
+            position += 8 + buffer.getInt(position);
+        }
+        if (buffer.limit() - position < 4 + LogRecord.FIXED_BODY_SIZE) return position;
+        String operation = LogRecord.operation(buffer.get(position + 4));
+        int keyLength = buffer.getInt(position + 13);
+        boolean wraps = "B".equals(operation) || "C".equals(operation);
+        if (wraps && keyLength >= 0 && keyLength <= buffer.limit() - position - 17) {
+            return wholeRecordsEnd(buffer, position + 17 + keyLength, crc);
+        }
+        return position;
+    }
+
+    private static boolean isRecord(ByteBuffer buffer, int position, CRC32C crc) {
+        if (buffer.limit() - position < LogRecord.OVERHEAD) return false;
+        int length = buffer.getInt(position);
+        if (length < LogRecord.FIXED_BODY_SIZE || length > buffer.limit() - position - 8) return false;
+        if (LogRecord.operation(buffer.get(position + 4)) == null) return false;
+        crc.reset();
+        crc.update(buffer.slice(position, 4 + length));
+        return (int) crc.getValue() == buffer.getInt(position + 4 + length);
+    }
+
+    private String readString(int offset, int length) {
+        if (buffer.hasArray()) {
+            return new String(buffer.array(), buffer.arrayOffset() + offset, length, StandardCharsets.UTF_8);
+        }
+        if (scratch.length < length) {
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        }
+        buffer.get(offset, scratch, 0, length);
+        return new String(scratch, 0, length, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,113 @@
+package com.vkdb.server;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+
+/*
+ * Binary layout of the append only log
+ *
+ * header : magic (4) | version (2) | reserved (2) | created at (8)
+ * record : length (4) | op (1) | expires at (8) | key length (4) | key | value | crc32c (4)
+ *
+ * length counts the bytes between the length field and the checksum, the checksum covers the length and the body
+ * expires at is an absolute time in millis, -1 when the key never expires
+ *
+ * a batch record groups the records of one multi key command, its key is empty and its value holds the encoded
+ * records one after the other. The one checksum covers the whole group, a torn batch is dropped as a whole
+ *
+ * a change record of the change log wraps one record, single or batch, the same way. Its expires at holds the
+ * sequence number of the change instead
+ */
+public final class LogRecord {
+    public static final int MAGIC = 0x564B4442; // "VKDB"
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 16;
+
+    public static final byte OP_SET = 1;
+    public static final byte OP_SET_EXPIRY = 2;
+    public static final byte OP_DELETE = 3;
+    public static final byte OP_BATCH = 4;
+    public static final byte OP_CHANGE = 5;
+
+    public static final int FIXED_BODY_SIZE = 1 + 8 + 4;    // op, expires at, key length
+    public static final int OVERHEAD = 4 + FIXED_BODY_SIZE + 4;  // length, fixed body, crc
+
+    private LogRecord() {
+    }
+
+    public static byte[] header(long createdAt) {
+        return ByteBuffer.allocate(HEADER_SIZE)
+                .putInt(MAGIC)
+                .putShort(VERSION)
+                .putShort((short) 0)
+                .putLong(createdAt)
+                .array();
+    }
+
+    public static boolean hasHeader(ByteBuffer buffer) {
+        return buffer.remaining() >= HEADER_SIZE && buffer.getInt(buffer.position()) == MAGIC;
+    }
+
+    // the creation time doubles as the identity of a log file, a compacted log gets a new one
+    public static long createdAt(ByteBuffer header) {
+        return header.getLong(header.position() + 8);
+    }
+
+    public static byte[] encode(SaveItem item) {
+        if (item instanceof BatchItem batch) {
+            ByteArrayOutputStream records = new ByteArrayOutputStream();
+            batch.getItems().forEach(inner -> records.writeBytes(encode(inner)));
+            return encode(OP_BATCH, -1L, new byte[0], records.toByteArray());
+        }
+
+        byte op = opCode(item.getOperation());
+        byte[] key = item.getKey().getBytes(StandardCharsets.UTF_8);
+        byte[] value = op == OP_DELETE || item.getValue() == null ? new byte[0] : item.getValue().getBytes(StandardCharsets.UTF_8);
+        long expiresAt = op == OP_SET_EXPIRY && item.getTtl() != null ? item.getTtl() : -1L;
+        return encode(op, expiresAt, key, value);
+    }
+
+    public static byte[] encodeChange(long sequence, SaveItem item) {
+        return encode(OP_CHANGE, sequence, new byte[0], encode(item));
+    }
+
+    private static byte[] encode(byte op, long expiresAt, byte[] key, byte[] value) {
+        int length = FIXED_BODY_SIZE + key.length + value.length;
+        ByteBuffer buffer = ByteBuffer.allocate(4 + length + 4);
+        buffer.putInt(length)
+                .put(op)
+                .putLong(expiresAt)
+                .putInt(key.length)
+                .put(key)
+                .put(value);
+
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.array(), 0, 4 + length);
+        buffer.putInt((int) crc.getValue());
+        return buffer.array();
+    }
+
+    public static byte opCode(String operation) {
+        return switch (operation) {
+            case "S" -> OP_SET;
+            case "SX" -> OP_SET_EXPIRY;
+            case "D" -> OP_DELETE;
+            case "B" -> OP_BATCH;
+            case "C" -> OP_CHANGE;
+            default -> throw new IllegalArgumentException("Unknown operation " + operation);
+        };
+    }
+
+    public static String operation(byte opCode) {
+        return switch (opCode) {
+            case OP_SET -> "S";
+            case OP_SET_EXPIRY -> "SX";
+            case OP_DELETE -> "D";
+            case OP_BATCH -> "B";
+            case OP_CHANGE -> "C";
+            default -> null;
+        };
+    }
+}
@@ -0,0 +1,50 @@
+package com.vkdb.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// A change to a watched key, never changed once queued. The bytes for a protocol are made when the first subscriber
+// speaking it needs them and shared by every other one
+public class Notification {
+    private final String key;
+    private final String value;
+    private final AtomicReferenceArray<byte[]> encoded = new AtomicReferenceArray<>(SocketItem.Protocol.values().length);
+
+    public Notification(String key, String value) {
+        this.key = key;
+        this.value = value;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    // two subscribers asking at once may both encode, they end up with equal bytes either way
+    public byte[] encoded(SocketItem.Protocol protocol) throws IOException {
+        byte[] bytes = encoded.get(protocol.ordinal());
+        if (bytes == null) {
+            bytes = encode(protocol);
+            encoded.set(protocol.ordinal(), bytes);
+        }
+        return bytes;
+    }
+
+    private byte[] encode(SocketItem.Protocol protocol) throws IOException {
+        return switch (protocol) {
+            case TEXT -> {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                new DataOutputStream(bytes).writeUTF("CHANGED " + key + " " + value);
+                yield bytes.toByteArray();
+            }
+            case BINARY -> BinaryFrame.encode(BinaryFrame.PUSH_ID, BinaryFrame.STATUS_PUSH, "CHANGED " + key + " " + value);
+            case RESP -> RespHandler.encodeArray(List.of("message", key, value));
+        };
+    }
+}
@@ -0,0 +1,120 @@
+package com.vkdb.server;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/*
+ * The notifications on their way to one subscriber, sent by a thread of its own so no subscriber waits for another
+ *
+ * while the subscriber keeps up every change goes out as it comes. Once its output backs up the changes wait here and
+ * a key changed again before its turn only keeps its latest value, in the place of the first change. A subscriber with
+ * more than NOTIFY_QUEUE_CAPACITY keys waiting is not catching up anymore and gets disconnected
+ */
+public class NotificationQueue {
+    private static final Logger logger = Logger.getLogger(NotificationQueue.class.getName());
+    private static final AtomicLong coalesced = new AtomicLong();
+
+    private final SocketItem socketItem;
+    private final LinkedHashMap<String, Notification> pending = new LinkedHashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private boolean stopped = false;
+
+    public NotificationQueue(SocketItem socketItem) {
+        this.socketItem = socketItem;
+        Thread.startVirtualThread(this::send);
+    }
+
+    // changes that were replaced by a newer one for the same key before they were sent
+    public static long getCoalesced() {
+        return coalesced.get();
+    }
+
+    // never blocks, called for every subscriber of a key by the notifications thread
+    public void offer(Notification notification) {
+        lock.lock();
+        try {
+            if (stopped) return;
+            if (pending.put(notification.getKey(), notification) != null) {
+                coalesced.incrementAndGet();
+            } else if (pending.size() > Constants.NOTIFY_QUEUE_CAPACITY) {
+                stopped = true;
+                pending.clear();
+                logger.warning("Closing subscriber " + socketItem.getId() + " with more than "
+                        + Constants.NOTIFY_QUEUE_CAPACITY + " keys waiting to be sent");
+                socketItem.disconnect();
+            }
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void stop() {
+        lock.lock();
+        try {
+            stopped = true;
+            pending.clear();
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return pending.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void send() {
+        List<Notification> batch = new ArrayList<>();
+        DataOutputStream out = socketItem.getOutputStream();
+        try {
+            while (true) {
+                lock.lock();
+                try {
+                    while (pending.isEmpty() && !stopped) {
+                        notEmpty.await();
+                    }
+                    if (stopped) return;
+                    batch.addAll(pending.values());
+                    pending.clear();
+                } finally {
+                    lock.unlock();
+                }
+
+                // each one a single write, so they never land inside a reply the connection's handler is writing
+                for (Notification notification : batch) {
+                    try {
+                        out.write(notification.encoded(socketItem.getProtocol()));
+                    } catch (UTFDataFormatException e) {
+                        logger.info("Change of " + notification.getKey() + " is too large for a text client " + socketItem.getId());
+                    }
+                }
+                out.flush();
+                batch.clear();
+
+                // whatever comes in while the client is behind waits here, where it can still be coalesced
+                if (socketItem.getOutputBuffer() != null) {
+                    socketItem.getOutputBuffer().awaitBelow(Constants.SOCKET_BUFFER_SIZE);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.fine("Stopped notifying " + socketItem.getId() + " : " + e.getLocalizedMessage());
+        }
+    }
+}
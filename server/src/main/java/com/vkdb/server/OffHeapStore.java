@@ -0,0 +1,504 @@
+package com.vkdb.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Keeps keys and values packed in direct memory, so the heap holds a few arrays per shard instead of a String, a
+ * SaveItem and a boxed ttl per key
+ *
+ * entry : key length (4) | value length (4, -1 for none) | expires at (8) | segment id (8) | op (1) | last access (8)
+ *         frequency (1) | key | value
+ *
+ * every shard has an open addressing index over primitive arrays pointing into its slabs of direct memory. Entries
+ * are only appended, an overwritten or removed entry becomes garbage until the shard copies its live entries into
+ * fresh slabs
+ */
+public class OffHeapStore implements Store {
+    private static final int SHARD_COUNT = 64;
+    private static final int ENTRY_HEADER_SIZE = 4 + 4 + 8 + 8 + 1 + 8 + 1;
+    private static final int EXPIRES_OFFSET = 8;
+    private static final int SEGMENT_ID_OFFSET = 16;
+    private static final int LAST_ACCESS_OFFSET = 25;
+    private static final int FREQUENCY_OFFSET = 33;
+    private static final long NO_EXPIRY = Long.MIN_VALUE;
+    private static final int CURSOR_SHARD_SHIFT = 40;   // scan cursors are the shard in the high bits and the bucket below
+
+    private final Shard[] shards = new Shard[SHARD_COUNT];
+
+    public OffHeapStore() {
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            shards[i] = new Shard();
+        }
+    }
+
+    @Override
+    public SaveItem get(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(keyBytes);
+        return shardFor(hash).get(keyBytes, hash, true);
+    }
+
+    @Override
+    public SaveItem peek(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(keyBytes);
+        return shardFor(hash).get(keyBytes, hash, false);
+    }
+
+    @Override
+    public void put(String key, SaveItem item) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(keyBytes);
+        shardFor(hash).put(keyBytes, hash, item);
+    }
+
+    @Override
+    public SaveItem remove(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(keyBytes);
+        return shardFor(hash).remove(keyBytes, hash, false);
+    }
+
+    @Override
+    public SaveItem removeExpired(String key) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(keyBytes);
+        return shardFor(hash).remove(keyBytes, hash, true);
+    }
+
+    @Override
+    public void markWritten(String key, long segmentId) {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        int hash = hash(keyBytes);
+        shardFor(hash).markWritten(keyBytes, hash, segmentId);
+    }
+
+    // one shard at a time is copied out under its read lock, so a walk never holds more than a shard worth of items
+    @Override
+    public Iterable<SaveItem> values() {
+        return () -> new Iterator<>() {
+            private int nextShard = 0;
+            private Iterator<SaveItem> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && nextShard < SHARD_COUNT) {
+                    current = shards[nextShard++].items().iterator();
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public SaveItem next() {
+                hasNext();
+                return current.next();
+            }
+        };
+    }
+
+    // shard by shard, each one by the home buckets of its index, which only ever grows by doubling
+    @Override
+    public long scan(long cursor, int count, List<SaveItem> into) {
+        if (cursor < 0) return 0;
+
+        int found = into.size();
+        long bucket = cursor & ((1L << CURSOR_SHARD_SHIFT) - 1);
+        for (int shard = (int) (cursor >>> CURSOR_SHARD_SHIFT); shard < SHARD_COUNT; shard++, bucket = 0) {
+            long next = shards[shard].scan(bucket, count - (into.size() - found), into);
+            if (next >= 0) return ((long) shard << CURSOR_SHARD_SHIFT) | next;
+        }
+        return 0;
+    }
+
+    // a random shard and slot, then the next live entries from there, moving on to the next shard when it is empty
+    @Override
+    public List<SaveItem> sample(int count) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(SHARD_COUNT);
+        for (int i = 0; i < SHARD_COUNT; i++) {
+            List<SaveItem> sample = shards[(first + i) % SHARD_COUNT].sample(count, random.nextInt());
+            if (!sample.isEmpty()) return sample;
+        }
+        return List.of();
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.size;
+        }
+        return size;
+    }
+
+    // live entries plus the index, garbage waiting for the shard compaction is not counted
+    @Override
+    public long memoryUsage() {
+        long usage = 0;
+        for (Shard shard : shards) {
+            usage += shard.memoryUsage;
+        }
+        return usage;
+    }
+
+    @Override
+    public void clear() {
+        for (Shard shard : shards) {
+            shard.clear();
+        }
+    }
+
+    private Shard shardFor(int hash) {
+        return shards[hash >>> 26]; // the top bits pick the shard, the index inside it uses the low bits
+    }
+
+    private static int hash(byte[] key) {
+        int hash = 1;
+        for (byte b : key) {
+            hash = 31 * hash + b;
+        }
+        return hash * 0x9E3779B9;
+    }
+
+    private static class Shard {
+        private static final int INITIAL_CAPACITY = 1024;
+        private static final int MIN_SLAB_SIZE = 64 * 1024;
+        private static final int MAX_SLAB_SIZE = 8 * 1024 * 1024;
+        private static final long EMPTY = 0;
+        private static final long REMOVED = -1;
+
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private int[] hashes = new int[INITIAL_CAPACITY];
+        private long[] addresses = new long[INITIAL_CAPACITY];   // slab number + 1 in the high half, offset in the low half
+        private volatile int size = 0;
+        private int removed = 0;
+        private final List<ByteBuffer> slabs = new ArrayList<>();
+        private long liveBytes = 0;
+        private long garbageBytes = 0;
+        private volatile long memoryUsage = 0;
+
+        // touching only rewrites the access fields in place, concurrent readers racing on them is harmless
+        SaveItem get(byte[] key, int hash, boolean touch) {
+            lock.readLock().lock();
+            try {
+                int slot = find(key, hash);
+                if (slot < 0) return null;
+
+                SaveItem item = read(addresses[slot]);
+                if (touch) {
+                    item.touch();
+                    ByteBuffer slab = slabOf(addresses[slot]);
+                    int offset = offsetOf(addresses[slot]);
+                    slab.putLong(offset + LAST_ACCESS_OFFSET, item.getLastAccess());
+                    slab.put(offset + FREQUENCY_OFFSET, (byte) item.getFrequency());
+                }
+                return item;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        void put(byte[] key, int hash, SaveItem item) {
+            byte[] value = item.getValue() == null ? null : item.getValue().getBytes(StandardCharsets.UTF_8);
+            lock.writeLock().lock();
+            try {
+                int slot = find(key, hash);
+                if (slot >= 0) {
+                    // overwriting a key keeps how popular it was
+                    item.setFrequency(Byte.toUnsignedInt(slabOf(addresses[slot]).get(offsetOf(addresses[slot]) + FREQUENCY_OFFSET)));
+                    discard(addresses[slot]);
+                } else {
+                    if ((size + removed + 1) * 4L > addresses.length * 3L) rehash();
+                    slot = freeSlot(hash);
+                    if (addresses[slot] == REMOVED) removed--;
+                    hashes[slot] = hash;
+                    size++;
+                }
+                item.touch();
+                addresses[slot] = append(key, value, item);
+                compactIfWasteful();
+                updateMemoryUsage();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        SaveItem remove(byte[] key, int hash, boolean onlyExpired) {
+            lock.writeLock().lock();
+            try {
+                int slot = find(key, hash);
+                if (slot < 0) return null;
+                if (onlyExpired) {
+                    long expiresAt = slabOf(addresses[slot]).getLong(offsetOf(addresses[slot]) + EXPIRES_OFFSET);
+                    if (expiresAt == NO_EXPIRY || System.currentTimeMillis() <= expiresAt) return null;
+                }
+
+                SaveItem item = read(addresses[slot]);
+                discard(addresses[slot]);
+                addresses[slot] = REMOVED;
+                removed++;
+                size--;
+                compactIfWasteful();
+                updateMemoryUsage();
+                return item;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void markWritten(byte[] key, int hash, long segmentId) {
+            lock.writeLock().lock();
+            try {
+                int slot = find(key, hash);
+                if (slot < 0) return;
+
+                ByteBuffer slab = slabOf(addresses[slot]);
+                int offset = offsetOf(addresses[slot]);
+                if (slab.getLong(offset + SEGMENT_ID_OFFSET) < segmentId) {
+                    slab.putLong(offset + SEGMENT_ID_OFFSET, segmentId);
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        List<SaveItem> items() {
+            lock.readLock().lock();
+            try {
+                List<SaveItem> items = new ArrayList<>(size);
+                for (long address : addresses) {
+                    if (address != EMPTY && address != REMOVED) {
+                        items.add(read(address));
+                    }
+                }
+                return items;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        // entries whose home is a bucket sit between it and the next empty slot, -1 once the last bucket was visited
+        long scan(long from, int count, List<SaveItem> into) {
+            lock.readLock().lock();
+            try {
+                int mask = addresses.length - 1;
+                int found = 0;
+                for (long bucket = from; bucket < addresses.length; bucket++) {
+                    if (found >= count || bucket - from >= count * 10L) return bucket;
+
+                    for (int slot = (int) bucket; addresses[slot] != EMPTY; slot = (slot + 1) & mask) {
+                        if (addresses[slot] != REMOVED && (hashes[slot] & mask) == bucket) {
+                            into.add(read(addresses[slot]));
+                            found++;
+                        }
+                    }
+                }
+                return -1;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        List<SaveItem> sample(int count, int start) {
+            lock.readLock().lock();
+            try {
+                List<SaveItem> sample = new ArrayList<>(count);
+                int mask = addresses.length - 1;
+                for (int i = 0; i < addresses.length && sample.size() < count; i++) {
+                    long address = addresses[(start + i) & mask];
+                    if (address != EMPTY && address != REMOVED) {
+                        sample.add(read(address));
+                    }
+                }
+                return sample;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        void clear() {
+            lock.writeLock().lock();
+            try {
+                hashes = new int[INITIAL_CAPACITY];
+                addresses = new long[INITIAL_CAPACITY];
+                size = 0;
+                removed = 0;
+                slabs.clear();
+                liveBytes = 0;
+                garbageBytes = 0;
+                updateMemoryUsage();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private int find(byte[] key, int hash) {
+            int mask = addresses.length - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                long address = addresses[slot];
+                if (address == EMPTY) return -1;
+                if (address != REMOVED && hashes[slot] == hash && keyEquals(address, key)) return slot;
+            }
+        }
+
+        private int freeSlot(int hash) {
+            int mask = addresses.length - 1;
+            int slot = hash & mask;
+            while (addresses[slot] != EMPTY && addresses[slot] != REMOVED) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        // grows the index when it is mostly live entries, otherwise just clears out the removed markers
+        private void rehash() {
+            int capacity = size * 2L >= addresses.length ? addresses.length * 2 : addresses.length;
+            int[] oldHashes = hashes;
+            long[] oldAddresses = addresses;
+            hashes = new int[capacity];
+            addresses = new long[capacity];
+            removed = 0;
+
+            for (int i = 0; i < oldAddresses.length; i++) {
+                if (oldAddresses[i] != EMPTY && oldAddresses[i] != REMOVED) {
+                    int slot = freeSlot(oldHashes[i]);
+                    hashes[slot] = oldHashes[i];
+                    addresses[slot] = oldAddresses[i];
+                }
+            }
+        }
+
+        private boolean keyEquals(long address, byte[] key) {
+            ByteBuffer slab = slabOf(address);
+            int offset = offsetOf(address);
+            if (slab.getInt(offset) != key.length) return false;
+
+            int keyOffset = offset + ENTRY_HEADER_SIZE;
+            for (int i = 0; i < key.length; i++) {
+                if (slab.get(keyOffset + i) != key[i]) return false;
+            }
+            return true;
+        }
+
+        private long append(byte[] key, byte[] value, SaveItem item) {
+            int length = ENTRY_HEADER_SIZE + key.length + (value == null ? 0 : value.length);
+            ByteBuffer slab = slabWithRoom(length);
+
+            int offset = slab.position();
+            Long expiresAt = item.getOperation().equals("SX") ? item.getTtl() : null;
+            slab.putInt(key.length)
+                    .putInt(value == null ? -1 : value.length)
+                    .putLong(expiresAt == null ? NO_EXPIRY : expiresAt)
+                    .putLong(item.getSegmentId())
+                    .put(LogRecord.opCode(item.getOperation()))
+                    .putLong(item.getLastAccess())
+                    .put((byte) item.getFrequency())
+                    .put(key);
+            if (value != null) slab.put(value);
+
+            liveBytes += length;
+            return ((long) slabs.size() << 32) | offset;
+        }
+
+        // slabs grow with the shard, an entry larger than a slab gets one of its own
+        private ByteBuffer slabWithRoom(int length) {
+            ByteBuffer slab = slabs.isEmpty() ? null : slabs.getLast();
+            if (slab == null || slab.remaining() < length) {
+                int slabSize = slab == null ? MIN_SLAB_SIZE : Math.min(slab.capacity() * 2, MAX_SLAB_SIZE);
+                slab = ByteBuffer.allocateDirect(Math.max(slabSize, length));
+                slabs.add(slab);
+            }
+            return slab;
+        }
+
+        private SaveItem read(long address) {
+            ByteBuffer slab = slabOf(address);
+            int offset = offsetOf(address);
+            int keyLength = slab.getInt(offset);
+            int valueLength = slab.getInt(offset + 4);
+            long expiresAt = slab.getLong(offset + EXPIRES_OFFSET);
+            long segmentId = slab.getLong(offset + SEGMENT_ID_OFFSET);
+            String operation = LogRecord.operation(slab.get(offset + 24));
+            long lastAccess = slab.getLong(offset + LAST_ACCESS_OFFSET);
+            int frequency = Byte.toUnsignedInt(slab.get(offset + FREQUENCY_OFFSET));
+
+            byte[] key = new byte[keyLength];
+            slab.get(offset + ENTRY_HEADER_SIZE, key);
+            String value = null;
+            if (valueLength >= 0) {
+                byte[] valueBytes = new byte[valueLength];
+                slab.get(offset + ENTRY_HEADER_SIZE + keyLength, valueBytes);
+                value = new String(valueBytes, StandardCharsets.UTF_8);
+            }
+
+            String keyString = new String(key, StandardCharsets.UTF_8);
+            SaveItem item = expiresAt == NO_EXPIRY
+                    ? new SaveItem(keyString, value, operation)
+                    : SaveItem.withExpiry(keyString, value, operation, expiresAt);
+            item.setSegmentId(segmentId);
+            item.setLastAccess(lastAccess);
+            item.setFrequency(frequency);
+            return item;
+        }
+
+        private void updateMemoryUsage() {
+            memoryUsage = liveBytes + addresses.length * 12L;
+        }
+
+        private void discard(long address) {
+            long length = lengthOf(address);
+            liveBytes -= length;
+            garbageBytes += length;
+        }
+
+        // copies the live entries into fresh slabs once more than half of the memory is garbage
+        private void compactIfWasteful() {
+            if (garbageBytes < MIN_SLAB_SIZE || garbageBytes < liveBytes) return;
+
+            List<ByteBuffer> oldSlabs = new ArrayList<>(slabs);
+            long[] oldAddresses = addresses.clone();
+            slabs.clear();
+            liveBytes = 0;
+            garbageBytes = 0;
+
+            for (int slot = 0; slot < addresses.length; slot++) {
+                long address = oldAddresses[slot];
+                if (address == EMPTY || address == REMOVED) continue;
+
+                ByteBuffer oldSlab = oldSlabs.get((int) (address >>> 32) - 1);
+                int offset = offsetOf(address);
+                int length = entryLength(oldSlab, offset);
+
+                ByteBuffer slab = slabWithRoom(length);
+                int newOffset = slab.position();
+                slab.put(oldSlab.slice(offset, length));
+                addresses[slot] = ((long) slabs.size() << 32) | newOffset;
+                liveBytes += length;
+            }
+        }
+
+        private long lengthOf(long address) {
+            return entryLength(slabOf(address), offsetOf(address));
+        }
+
+        private static int entryLength(ByteBuffer slab, int offset) {
+            int valueLength = slab.getInt(offset + 4);
+            return ENTRY_HEADER_SIZE + slab.getInt(offset) + Math.max(valueLength, 0);
+        }
+
+        private ByteBuffer slabOf(long address) {
+            return slabs.get((int) (address >>> 32) - 1);
+        }
+
+        private static int offsetOf(long address) {
+            return (int) address;
+        }
+    }
+}
@@ -0,0 +1,479 @@
+package com.vkdb.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/*
+ * Everything a connection has to send, kept apart from its socket so nobody writing to a client waits for it to read
+ *
+ * writes only append to a buffer and a flush hands what was written so far to the connection's own sender thread,
+ * which is the only one doing socket writes. Each write is one whole message, writers from other threads never split
+ * a reply. What is written but not sent yet counts against the limits of the client's class, a connection over the
+ * hard limit, or over the soft limit for longer than its seconds, is closed. A limit of 0 is no limit
+ */
+public class OutputBuffer extends OutputStream {
+    private static final Logger logger = Logger.getLogger(OutputBuffer.class.getName());
+    private static final Set<OutputBuffer> open = ConcurrentHashMap.newKeySet();
+    private static final AtomicLong disconnected = new AtomicLong();
+    private static final Limits[] limits = new Limits[ClientClass.values().length];
+
+    static {
+        for (ClientClass clientClass : ClientClass.values()) {
+            limits[clientClass.ordinal()] = Limits.parse(clientClass.defaultLimits);
+        }
+    }
+
+    // subscribers get notifications they never asked for at that moment, replicas get every write
+    public enum ClientClass {
+        NORMAL(Constants.DEFAULT_OUTPUT_LIMIT_NORMAL),
+        SUBSCRIBER(Constants.DEFAULT_OUTPUT_LIMIT_SUBSCRIBER),
+        REPLICA(Constants.DEFAULT_OUTPUT_LIMIT_REPLICA);
+
+        private final String defaultLimits;
+
+        ClientClass(String defaultLimits) {
+            this.defaultLimits = defaultLimits;
+        }
+    }
+
+    public record Limits(long hard, long soft, long softSeconds) {
+        // <hard> <soft> <seconds> like 32mb 8mb 60
+        public static Limits parse(String value) {
+            String[] parts = value.trim().split("\\s+");
+            if (parts.length != 3) throw new IllegalArgumentException("Output buffer limits need <hard> <soft> <seconds>, got " + value);
+            return new Limits(Evictor.parseMemory(parts[0]), Evictor.parseMemory(parts[1]), Long.parseLong(parts[2]));
+        }
+
+        @Override
+        public String toString() {
+            return hard + " " + soft + " " + softSeconds;
+        }
+    }
+
+    private final String id;
+    private final Socket socket;
+    private OutputStream out;   // the socket's, or compressing into it once compress was called
+    private Deflater deflater;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition ready = lock.newCondition();
+    private final Condition drained = lock.newCondition();
+    private volatile ClientClass clientClass = ClientClass.NORMAL;
+    private byte[] pending = new byte[Constants.SOCKET_BUFFER_SIZE];
+    private byte[] spare = new byte[Constants.SOCKET_BUFFER_SIZE];
+    private volatile Thread owner;
+    private int pendingSize = 0;
+    private int flushedSize = 0;     // the part of pending the sender may take
+    private long sending = 0;        // taken by the sender and not written to the socket yet
+    private long peak = 0;
+    private long sent = 0;
+    private long waitingSince = 0;     // when the oldest output not sent yet was written
+    private long overSoftSince = 0;
+    private boolean closed = false;
+    private boolean held = false;   // writes pile up without being handed to the sender, while a file goes out first
+
+    private OutputBuffer(String id, Socket socket) throws IOException {
+        this.id = id;
+        this.socket = socket;
+        this.out = socket.getOutputStream();
+    }
+
+    // registered and its sender started only once it is built, neither sees a half made buffer
+    public static OutputBuffer start(String id, Socket socket) throws IOException {
+        OutputBuffer buffer = new OutputBuffer(id, socket);
+        open.add(buffer);
+        Thread.startVirtualThread(buffer::send);
+        return buffer;
+    }
+
+    // class names are the lower case enum names, like pubsub in redis the subscribers are called subscriber here
+    public static void setLimits(String clientClass, Limits classLimits) {
+        limits[ClientClass.valueOf(clientClass.trim().toUpperCase()).ordinal()] = classLimits;
+    }
+
+    public static Limits getLimits(ClientClass clientClass) {
+        return limits[clientClass.ordinal()];
+    }
+
+    public static List<OutputBuffer> connections() {
+        return List.copyOf(open);
+    }
+
+    public static long getDisconnected() {
+        return disconnected.get();
+    }
+
+    public void setClientClass(ClientClass clientClass) {
+        this.clientClass = clientClass;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        lock.lock();
+        try {
+            if (closed) throw new IOException("Connection to " + id + " is closed");
+            if (buffered() == 0) waitingSince = System.currentTimeMillis();
+            if (pendingSize + length > pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(pendingSize + length, pending.length * 2));
+            }
+            System.arraycopy(bytes, offset, pending, pendingSize, length);
+            pendingSize += length;
+
+            if (pendingSize >= Constants.SOCKET_BUFFER_SIZE) handOver();    // like a full BufferedOutputStream would
+            checkLimits();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the owner writes its replies itself when nothing else is on the way, saving the hand over to the sender. It may
+    // block on its own client that way, as it always did, while writes from other threads never wait for the socket
+    @Override
+    public void flush() throws IOException {
+        byte[] chunk;
+        int length;
+        OutputStream target;
+        lock.lock();
+        try {
+            if (closed) throw new IOException("Connection to " + id + " is closed");
+            if (Thread.currentThread() != owner || sending > 0 || flushedSize > 0 || held) {
+                handOver();
+                return;
+            }
+            if (pendingSize == 0) return;
+            flushedSize = pendingSize;
+            length = flushedSize;
+            chunk = takeFlushed();
+            target = out;
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            target.write(chunk, 0, length);
+            target.flush();
+        } catch (IOException e) {
+            sent(chunk, 0);
+            throw e;
+        }
+        sent(chunk, length);
+    }
+
+    // the thread handling the connection's requests
+    public void setOwner(Thread owner) {
+        this.owner = owner;
+    }
+
+    // everything written from now on is deflated on its way out, by the sender a chunk at a time. Only while nothing
+    // is waiting to be sent, what is already on the way has to arrive as it is
+    public void compress() {
+        lock.lock();
+        try {
+            if (buffered() > 0) throw new IllegalStateException("Output of " + id + " is still being sent");
+            deflate();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // keeps what is written from now on until release, it still counts against the limits while it waits
+    public void hold() {
+        lock.lock();
+        try {
+            held = true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // sends the head and the file straight to the socket ahead of everything held, without the file passing through
+    // the heap when the socket has a channel. None of it counts as sent
+    public void transfer(byte[] head, FileChannel file) throws IOException, InterruptedException {
+        OutputStream target;
+        lock.lock();
+        try {
+            if (!held) throw new IllegalStateException("Output of " + id + " is not held");
+            while (!closed && (sending > 0 || flushedSize > 0)) {
+                drained.await();
+            }
+            if (closed) throw new IOException("Connection to " + id + " is closed");
+            target = out;
+        } finally {
+            lock.unlock();
+        }
+
+        // nothing is handed to the sender while held, this is the only thread writing to the socket
+        target.write(head);
+        target.flush();
+        WritableByteChannel channel = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(target);
+        long size = file.size();
+        for (long position = 0; position < size; ) {
+            position += file.transferTo(position, size - position, channel);
+        }
+    }
+
+    // hands everything held to the sender, deflated from here on when asked to
+    public void release(boolean compress) {
+        lock.lock();
+        try {
+            held = false;
+            if (closed) return;
+            if (compress) deflate();
+            handOver();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // everything written so far, sent or not
+    public long getWritten() {
+        lock.lock();
+        try {
+            return sent + buffered();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getSent() {
+        lock.lock();
+        try {
+            return sent;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // how long the client has had output waiting, 0 when it took everything
+    public long getBehindMillis() {
+        lock.lock();
+        try {
+            return buffered() == 0 ? 0 : System.currentTimeMillis() - waitingSince;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // the bytes that went over the wire, null when nothing is compressed
+    public Long getCompressedSent() {
+        lock.lock();
+        try {
+            return deflater == null ? null : deflater.getBytesWritten();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // for a connection's own thread producing a long reply, waits until the client took all but the given bytes of it
+    public void awaitBelow(long bytes) throws IOException, InterruptedException {
+        lock.lock();
+        try {
+            handOver();
+            while (!closed && buffered() > bytes) {
+                drained.await();
+            }
+            if (closed) throw new IOException("Connection to " + id + " is closed");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // sends what is left and closes the socket, a client that doesn't take it in time is cut off
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (closed) return;
+            handOver();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Constants.OUTPUT_CLOSE_TIMEOUT);
+            while (buffered() > 0 && !socket.isClosed()) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0 || !drained.await(left, TimeUnit.NANOSECONDS)) break;
+            }
+            closed = true;
+            ready.signal();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            lock.unlock();
+        }
+        closeSocket();
+    }
+
+    public long getBuffered() {
+        lock.lock();
+        try {
+            return buffered();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // one line of the CLIENTS listing
+    public String describe() {
+        lock.lock();
+        try {
+            return "id=" + id + " class=" + clientClass.name().toLowerCase() + " buffered=" + buffered()
+                    + " peak=" + peak + " sent=" + sent;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // holding the lock, nothing may be on its way to the socket
+    private void deflate() {
+        deflater = new Deflater(Deflater.BEST_SPEED);
+        out = new DeflaterOutputStream(out, deflater, Constants.SOCKET_BUFFER_SIZE, true);
+    }
+
+    private long buffered() {
+        return pendingSize + sending;
+    }
+
+    private void handOver() {
+        if (held || flushedSize == pendingSize) return;
+        flushedSize = pendingSize;
+        ready.signal();
+    }
+
+    private void checkLimits() {
+        long size = buffered();
+        peak = Math.max(peak, size);
+        Limits classLimits = limits[clientClass.ordinal()];
+
+        String reason = null;
+        if (classLimits.hard() > 0 && size > classLimits.hard()) {
+            reason = "hard limit of " + classLimits.hard() + " bytes";
+        } else if (classLimits.soft() > 0 && size > classLimits.soft()) {
+            long now = System.currentTimeMillis();
+            if (overSoftSince == 0) overSoftSince = now;
+            else if (now - overSoftSince >= classLimits.softSeconds() * 1000) {
+                reason = "soft limit of " + classLimits.soft() + " bytes for " + classLimits.softSeconds() + " seconds";
+            }
+        } else {
+            overSoftSince = 0;
+        }
+        if (reason == null) return;
+
+        logger.warning("Closing " + clientClass.name().toLowerCase() + " client " + id + " with " + size
+                + " bytes of output buffered, over the " + reason);
+        disconnected.incrementAndGet();
+        drop();
+    }
+
+    // closes the connection right away without sending what is left, for a client that can't keep up
+    public void disconnect() {
+        lock.lock();
+        try {
+            if (!closed) drop();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // nothing more is sent, the client lost its place in the stream anyway. Holding the lock
+    private void drop() {
+        closed = true;
+        pendingSize = flushedSize = 0;
+        ready.signal();
+        drained.signalAll();
+        Thread.startVirtualThread(this::closeSocket);   // the writer may hold locks of its own, it shouldn't wait on a close
+    }
+
+    // the connection's sender, writes what other threads flushed and whatever came in while the owner was writing
+    private void send() {
+        try {
+            while (true) {
+                byte[] chunk;
+                int length;
+                OutputStream target;
+                lock.lock();
+                try {
+                    while ((flushedSize == 0 || sending > 0) && !closed) {
+                        ready.await();
+                    }
+                    if (flushedSize == 0) return;
+                    length = flushedSize;
+                    chunk = takeFlushed();
+                    target = out;
+                } finally {
+                    lock.unlock();
+                }
+
+                // whatever other threads flushed meanwhile goes out in this one write
+                target.write(chunk, 0, length);
+                target.flush();
+                sent(chunk, length);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            logger.fine("Could not send to " + id + " : " + e.getLocalizedMessage());
+        } finally {
+            lock.lock();
+            try {
+                closed = true;
+                sending = 0;
+                pendingSize = flushedSize = 0;
+                drained.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            closeSocket();
+        }
+    }
+
+    // swaps the buffers, whatever was written after the flush stays pending in the other one. Holding the lock
+    private byte[] takeFlushed() {
+        byte[] chunk = pending;
+        int tail = pendingSize - flushedSize;
+        pending = spare != null && spare.length >= tail ? spare : new byte[Math.max(tail, Constants.SOCKET_BUFFER_SIZE)];
+        spare = null;
+        System.arraycopy(chunk, flushedSize, pending, 0, tail);
+        sending = flushedSize;
+        pendingSize = tail;
+        flushedSize = 0;
+        return chunk;
+    }
+
+    private void sent(byte[] chunk, int length) {
+        lock.lock();
+        try {
+            sending = 0;
+            sent += length;
+            spare = chunk.length > Constants.SOCKET_BUFFER_SIZE * 4 ? null : chunk;   // a buffer grown for one big reply isn't kept
+            if (flushedSize > 0) ready.signal();
+            drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void closeSocket() {
+        open.remove(this);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+}
@@ -0,0 +1,213 @@
+package com.vkdb.server;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * The patterns clients watch with PNOTIFY, in a trie on the literal part each pattern starts with
+ *
+ * a changed key walks down the trie one character at a time, so only the patterns sharing its beginning are looked at
+ * and a SET costs about the length of its key however many patterns there are. A prefix pattern like session:* ends
+ * in a trailing * and matches every key reaching its node without further work, the rest of any other pattern is
+ * matched against the rest of the key. The globs are the ones SCAN MATCH takes, * and ? with a backslash escaping
+ */
+public class PatternIndex {
+
+    private static class Node {
+        private final Node parent;
+        private final char c;
+        private final Map<Character, Node> children = new HashMap<>();
+        // pattern -> its subscribers, for the patterns whose literal part ends here
+        private final Map<String, Set<SocketItem>> patterns = new HashMap<>();
+        // pattern -> what follows its literal part, from the first wildcard on
+        private final Map<String, String> rests = new HashMap<>();
+
+        private Node(Node parent, char c) {
+            this.parent = parent;
+            this.c = c;
+        }
+    }
+
+    private final Node root = new Node(null, '\0');
+    private final Map<SocketItem, Set<String>> bySocket = new HashMap<>();
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private volatile int size = 0;
+
+    // false when the client was watching the pattern already
+    public boolean subscribe(String pattern, SocketItem socketItem) {
+        int wildcard = firstWildcard(pattern);
+        String literal = unescape(pattern, wildcard);
+        lock.writeLock().lock();
+        try {
+            Node node = root;
+            for (int i = 0; i < literal.length(); i++) {
+                Node child = node.children.get(literal.charAt(i));
+                if (child == null) {
+                    child = new Node(node, literal.charAt(i));
+                    node.children.put(literal.charAt(i), child);
+                }
+                node = child;
+            }
+            node.rests.putIfAbsent(pattern, pattern.substring(wildcard));
+            if (!node.patterns.computeIfAbsent(pattern, p -> new HashSet<>()).add(socketItem)) return false;
+            bySocket.computeIfAbsent(socketItem, s -> new HashSet<>()).add(pattern);
+            size++;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // false when the client wasn't watching the pattern
+    public boolean unsubscribe(String pattern, SocketItem socketItem) {
+        lock.writeLock().lock();
+        try {
+            Set<String> patterns = bySocket.get(socketItem);
+            if (patterns == null || !patterns.remove(pattern)) return false;
+            if (patterns.isEmpty()) bySocket.remove(socketItem);
+            remove(pattern, socketItem);
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // everything a client watched, once it is gone
+    public void unsubscribeAll(SocketItem socketItem) {
+        if (size == 0) return;
+        lock.writeLock().lock();
+        try {
+            Set<String> patterns = bySocket.remove(socketItem);
+            if (patterns == null) return;
+            for (String pattern : patterns) {
+                remove(pattern, socketItem);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // whether anybody watches a pattern the key matches, checked for every change to a key
+    public boolean matchesAny(String key) {
+        if (size == 0) return false;
+        lock.readLock().lock();
+        try {
+            Node node = root;
+            for (int depth = 0; node != null; depth++) {
+                for (String rest : node.rests.values()) {
+                    if (matches(rest, key, depth)) return true;
+                }
+                node = depth < key.length() ? node.children.get(key.charAt(depth)) : null;
+            }
+            return false;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // adds the clients watching a pattern the key matches
+    public void collect(String key, Collection<SocketItem> socketItems) {
+        if (size == 0) return;
+        lock.readLock().lock();
+        try {
+            Node node = root;
+            for (int depth = 0; node != null; depth++) {
+                for (Map.Entry<String, String> rest : node.rests.entrySet()) {
+                    if (matches(rest.getValue(), key, depth)) socketItems.addAll(node.patterns.get(rest.getKey()));
+                }
+                node = depth < key.length() ? node.children.get(key.charAt(depth)) : null;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // holding the write lock, drops the nodes nothing is left under
+    private void remove(String pattern, SocketItem socketItem) {
+        Node node = root;
+        String literal = unescape(pattern, firstWildcard(pattern));
+        for (int i = 0; i < literal.length() && node != null; i++) {
+            node = node.children.get(literal.charAt(i));
+        }
+        if (node == null) return;
+        Set<SocketItem> subscribers = node.patterns.get(pattern);
+        if (subscribers == null || !subscribers.remove(socketItem)) return;
+        size--;
+        if (!subscribers.isEmpty()) return;
+        node.patterns.remove(pattern);
+        node.rests.remove(pattern);
+        while (node.parent != null && node.patterns.isEmpty() && node.children.isEmpty()) {
+            node.parent.children.remove(node.c);
+            node = node.parent;
+        }
+    }
+
+    // the index of the first unescaped * or ?, the length of the pattern when it has none
+    private static int firstWildcard(String pattern) {
+        for (int i = 0; i < pattern.length(); i++) {
+            char c = pattern.charAt(i);
+            if (c == '*' || c == '?') return i;
+            if (c == '\\') i++;
+        }
+        return pattern.length();
+    }
+
+    private static String unescape(String pattern, int end) {
+        if (pattern.indexOf('\\') < 0) return pattern.substring(0, end);
+        StringBuilder literal = new StringBuilder(end);
+        for (int i = 0; i < end; i++) {
+            char c = pattern.charAt(i);
+            if (c == '\\') {
+                if (++i < end) literal.append(pattern.charAt(i));
+            } else {
+                literal.append(c);
+            }
+        }
+        return literal.toString();
+    }
+
+    // the glob against the key from the given index, going back to the last * on a mismatch
+    static boolean matches(String glob, String key, int from) {
+        if (glob.equals("*")) return true;     // a prefix pattern, the trie already matched its literal part
+        int g = 0;
+        int k = from;
+        int star = -1;
+        int starKey = 0;
+        while (k < key.length()) {
+            if (g < glob.length()) {
+                char c = glob.charAt(g);
+                if (c == '*') {
+                    star = g++;
+                    starKey = k;
+                    continue;
+                }
+                if (c == '?') {
+                    g++;
+                    k++;
+                    continue;
+                }
+                boolean escaped = c == '\\';
+                if (escaped && g + 1 < glob.length() && glob.charAt(g + 1) == key.charAt(k) || !escaped && c == key.charAt(k)) {
+                    g += escaped ? 2 : 1;
+                    k++;
+                    continue;
+                }
+            }
+            if (star < 0) return false;
+            g = star + 1;
+            k = ++starKey;
+        }
+        while (g < glob.length() && (glob.charAt(g) == '*' || (glob.charAt(g) == '\\' && g + 1 == glob.length()))) {
+            g++;
+        }
+        return g == glob.length();
+    }
+}
@@ -0,0 +1,66 @@
+package com.vkdb.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/*
+ * A buffered socket stream that can tell whether more of the client's requests already sit in its buffer, the
+ * handlers keep their replies buffered until it runs dry and send them in one write
+ *
+ * not a BufferedInputStream subclass, those fall back to synchronized methods and a virtual thread blocking in read
+ * would pin its carrier. Only the connection's own handler reads from it
+ */
+public class PipelineInputStream extends InputStream {
+    private final InputStream in;
+    private final byte[] buffer;
+    private int position = 0;
+    private int count = 0;
+
+    public PipelineInputStream(InputStream in, int size) {
+        this.in = in;
+        this.buffer = new byte[size];
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (position == count && !fill()) return -1;
+        return buffer[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) return 0;
+        if (position == count) {
+            if (length >= buffer.length) return in.read(bytes, offset, length);  // large values skip the copy
+            if (!fill()) return -1;
+        }
+
+        int read = Math.min(length, count - position);
+        System.arraycopy(buffer, position, bytes, offset, read);
+        position += read;
+        return read;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return buffered() + in.available();
+    }
+
+    // bytes read from the socket but not handed out yet, checking it costs no system call
+    public int buffered() {
+        return count - position;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private boolean fill() throws IOException {
+        int read = in.read(buffer, 0, buffer.length);
+        if (read <= 0) return false;
+        position = 0;
+        count = read;
+        return true;
+    }
+}
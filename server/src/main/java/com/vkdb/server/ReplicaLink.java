@@ -0,0 +1,273 @@
+package com.vkdb.server;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/*
+ * A replica's connection to its master, applies the master's stream and comes back after losing it
+ *
+ * logs in and asks for the stream with PSYNC, the first time with an unknown id so the master sends every key first.
+ * The commands run through a handler of their own like a client's would, so they reach the log, the subscribers and
+ * this server's own replicas. After a lost connection it asks from the offset it got to, and a master still holding
+ * that part of the stream only sends what is missing. Asked to, the master deflates everything after its PSYNC reply.
+ * When it ran out of commands to apply it tells the master with REPLCONF ACK <offset> how far it got, right away
+ * when the master asked with REPLCONF GETACK and otherwise at most every REPLICA_ACK_INTERVAL, the master's pings
+ * make sure it comes. How stale its keys are is the time since it last had everything that arrived applied, less a
+ * ping interval while it sits caught up waiting, a master with nothing to send still pings that often
+ */
+public class ReplicaLink implements Runnable {
+    private static final Logger logger = Logger.getLogger(ReplicaLink.class.getName());
+
+    private final String host;
+    private final int port;
+    private final String user;
+    private final String password;
+    private final boolean compressed;
+    private final Store database;
+    private final Function<SocketItem, ClientHandler> handlers;
+    private volatile boolean stopped = false;
+    private volatile Socket socket;
+    private volatile String status = "connecting";
+    private volatile String masterReplicationId = "?";
+    private volatile long offset = -1;     // of the master's stream applied so far
+    private volatile long caughtUpAt = 0;   // when everything that arrived was last applied, 0 while there are no keys to go by
+    private volatile boolean waiting = false;   // caught up and waiting for the master to send more
+
+    // counts the bytes handed on, the replication offset moves by what a command took on the wire
+    static class CountingInputStream extends FilterInputStream {
+        private long count = 0;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        long getCount() {
+            return count;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) count++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            int read = super.read(bytes, offset, length);
+            if (read > 0) count += read;
+            return read;
+        }
+    }
+
+    // the dump of a full sync, its size comes with the reply and the stream starts right after it
+    private static class DumpInputStream extends FilterInputStream {
+        private long left;
+
+        private DumpInputStream(InputStream in, long size) {
+            super(in);
+            this.left = size;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (left == 0) return -1;
+            int b = super.read();
+            if (b >= 0) left--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (left == 0) return -1;
+            int read = super.read(bytes, offset, (int) Math.min(length, left));
+            if (read > 0) left -= read;
+            return read;
+        }
+
+        // the end of a deflated dump may not have been read yet
+        private void skipRest() throws IOException {
+            in.skipNBytes(left);
+            left = 0;
+        }
+    }
+
+    public ReplicaLink(String host, int port, String user, String password, boolean compressed, Store database, Function<SocketItem, ClientHandler> handlers) {
+        this.host = host;
+        this.port = port;
+        this.user = user;
+        this.password = password;
+        this.compressed = compressed;
+        this.database = database;
+        this.handlers = handlers;
+    }
+
+    @Override
+    public void run() {
+        logger.info("Replicating " + host + ":" + port);
+        while (!stopped) {
+            try {
+                follow();
+            } catch (EOFException e) {
+                if (!stopped) logger.info("Lost the master " + host + ":" + port + ", it closed the connection");
+            } catch (IOException e) {
+                if (!stopped) logger.info("Lost the master " + host + ":" + port + " : " + e.getLocalizedMessage());
+            } catch (Exception e) {
+                logger.warning("Replication from " + host + ":" + port + " failed : " + e);
+            }
+            status = "down";
+            if (stopped) break;
+            try {
+                Thread.sleep(Constants.REPLICA_RECONNECT_DELAY);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        logger.info("Stopped replicating " + host + ":" + port);
+    }
+
+    public void stop() {
+        stopped = true;
+        Socket current = socket;
+        if (current == null) return;
+        try {
+            current.close();
+        } catch (IOException e) {
+            // already gone
+        }
+    }
+
+    public String info() {
+        return "master_host:" + host + "\n"
+                + "master_port:" + port + "\n"
+                + "master_link_status:" + status + "\n"
+                + "slave_repl_offset:" + offset + "\n"
+                + "master_lag_millis:" + getLagMillis() + "\n"
+                + "master_link_compressed:" + (compressed ? "yes" : "no");
+    }
+
+    // how far behind the master the keys here may be, -1 before the first sync was through
+    public long getLagMillis() {
+        long since = caughtUpAt;
+        if (since == 0) return -1;
+        long behind = System.currentTimeMillis() - since;
+        return waiting ? Math.max(0, behind - Constants.REPL_PING_INTERVAL) : behind;
+    }
+
+    private void follow() throws Exception {
+        try (Socket master = new Socket(host, port)) {
+            socket = master;
+            if (stopped) return;
+            master.setTcpNoDelay(true);
+            BufferedInputStream input = new BufferedInputStream(master.getInputStream(), Constants.SOCKET_BUFFER_SIZE);
+            DataInputStream control = new DataInputStream(input);
+            DataOutputStream out = new DataOutputStream(master.getOutputStream());
+            String id = host + ":" + port;
+            ClientHandler handler = handlers.apply(new SocketItem(id, master, database, out, control, user, password));
+            handler.loginAsMaster(user);
+
+            out.writeUTF("LOGIN " + user + " " + password);
+            out.flush();
+            String login = control.readUTF();
+            if (!login.equals("LOGIN SUCCESSFUL!")) throw new IOException("Master refused the login : " + login);
+
+            out.writeUTF("PSYNC " + masterReplicationId + " " + offset + (compressed ? " COMPRESS" : ""));
+            out.flush();
+            String[] reply = control.readUTF().split(" ");
+            switch (reply[0]) {
+                case "CONTINUE" -> logger.info("Continuing the stream of " + id + " from offset " + offset);
+                case "FULLRESYNC" -> {
+                    status = "sync";
+                    masterReplicationId = "?";  // half synced is no place to continue from
+                    offset = -1;
+                    caughtUpAt = 0;
+                    fullSync(handler, new DumpInputStream(input, Long.parseLong(reply[3])));
+                    masterReplicationId = reply[1];
+                    offset = Long.parseLong(reply[2]);
+                }
+                default -> throw new IOException("Master refused to sync : " + String.join(" ", reply));
+            }
+
+            // the offset counts the stream as it was before deflating
+            Inflater inflater = compressed ? new Inflater() : null;
+            CountingInputStream counting = new CountingInputStream(compressed
+                    ? new InflaterInputStream(input, inflater, Constants.SOCKET_BUFFER_SIZE)
+                    : input);
+            DataInputStream in = new DataInputStream(counting);
+
+            status = "up";
+            long counted = counting.getCount();
+            long acknowledged = -1;
+            long acknowledgedAt = 0;
+            boolean asked = true;   // the master waits for the first one to know where the replica is
+            while (!stopped) {
+                if (input.available() == 0 && (inflater == null || inflater.needsInput())) {
+                    // applied everything that arrived, one acknowledgement covers the whole batch
+                    long now = System.currentTimeMillis();
+                    caughtUpAt = now;
+                    if (offset != acknowledged && (asked || now - acknowledgedAt >= Constants.REPLICA_ACK_INTERVAL)) {
+                        out.writeUTF("REPLCONF ACK " + offset);
+                        out.flush();
+                        acknowledged = offset;
+                        acknowledgedAt = now;
+                        asked = false;
+                    }
+                    waiting = true;
+                }
+                String[] args = BinaryFrame.read(in).args();
+                waiting = false;
+                if (args[0].equals("REPLCONF") && args.length == 2 && args[1].equals("GETACK")) {
+                    asked = true;
+                } else if (!args[0].equals("PING")) {
+                    handler.execute(args);
+                }
+                offset += counting.getCount() - counted;
+                counted = counting.getCount();
+            }
+        } finally {
+            socket = null;
+            waiting = false;
+        }
+    }
+
+    // the keys this replica had are deleted first, through the log as well so a restart doesn't bring them back
+    private void fullSync(ClientHandler handler, DumpInputStream dump) throws Exception {
+        List<SaveItem> page = new ArrayList<>(Constants.SCAN_PAGE_SIZE);
+        long cursor = 0;
+        do {
+            page.clear();
+            cursor = database.scan(cursor, Constants.SCAN_PAGE_SIZE, page);
+            if (page.isEmpty()) continue;
+            List<String> delete = new ArrayList<>(page.size() + 1);
+            delete.add("MDEL");
+            page.forEach(item -> delete.add(item.getKey()));
+            handler.execute(delete.toArray(new String[0]));
+        } while (cursor != 0);
+
+        DataInputStream in = new DataInputStream(compressed
+                ? new InflaterInputStream(dump, new Inflater(), Constants.SOCKET_BUFFER_SIZE)
+                : dump);
+        long keys = 0;
+        while (true) {
+            BinaryFrame.Request command = BinaryFrame.read(in);
+            if (command.args()[0].equals("ENDSYNC")) break;
+            handler.execute(command.args());
+            keys++;
+        }
+        dump.skipRest();
+        logger.info("Loaded " + keys + " keys from the master");
+    }
+}
@@ -0,0 +1,375 @@
+package com.vkdb.server;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/*
+ * Both sides of replication, the replicas this server feeds and the master it follows when it is a replica itself
+ *
+ * every command that changed something goes out once as a binary request frame, into the backlog and to every replica
+ * in the same order under the one lock. The write is applied here under that lock too, two writes of a key racing each
+ * other can't reach the replicas in the other order than they went in here. Writing to a replica only appends to its
+ * output buffer, the buffer's sender is the one thread writing to the replica's socket and sends whatever piled up
+ * since its last write at once, deflated when the replica asked for it. The stream's offset is its length in bytes, so
+ * a replica knows exactly how far it got. A replica asks with PSYNC <replication id> <offset>, one that was here before
+ * and whose offset is still in the backlog gets CONTINUE and just what it missed. Any other gets FULLRESYNC
+ * <replication id> <offset> <size> and a dump of the keys ending in ENDSYNC, written to a file first and sent from
+ * there with transferTo. The commands coming in meanwhile wait in the replica's output buffer and follow the dump
+ */
+public class Replication {
+    private static final Logger logger = Logger.getLogger(Replication.class.getName());
+    private static final byte[] GETACK = BinaryFrame.encodeRequest(0, "REPLCONF", "GETACK");
+
+    private final String replicationId = HexFormat.of().formatHex(new SecureRandom().generateSeed(20));
+    private final Store database;
+    private final int backlogSize;
+    private final Function<SocketItem, ClientHandler> handlers;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition acknowledged = lock.newCondition();
+    private final List<Replica> replicas = new ArrayList<>();
+    private long getAckOffset = -1;     // where the last GETACK went into the stream
+    private volatile ReplicationBacklog backlog;    // made when the first replica comes, nothing is kept before
+    private volatile ReplicaLink link;   // to the master, while this server is a replica
+    private String masterUser;
+    private String masterPassword;
+
+    // a replica being fed, the stream offset it was at when its output buffer had taken base bytes. Guarded by the lock
+    private static class Replica {
+        private final SocketItem socketItem;
+        private final long from;
+        private final long base;
+        private final boolean compressed;
+        private long acknowledged = -1;
+
+        private Replica(SocketItem socketItem, long from, long base, boolean compressed) {
+            this.socketItem = socketItem;
+            this.from = from;
+            this.base = base;
+            this.compressed = compressed;
+        }
+
+        private long sentOffset() {
+            return from + socketItem.getOutputBuffer().getSent() - base;
+        }
+    }
+
+    public Replication(Store database, int backlogSize, Function<SocketItem, ClientHandler> handlers) {
+        this.database = database;
+        this.backlogSize = backlogSize;
+        this.handlers = handlers;
+    }
+
+    // dumps a crash left behind are of no use to anybody
+    public void open() throws IOException {
+        if (!Files.isDirectory(Constants.REPL_SYNC_DIRECTORY)) return;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(Constants.REPL_SYNC_DIRECTORY, "sync_*.tmp")) {
+            for (Path path : stream) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    // what a replica logs in to its master with unless REPLICAOF names a user
+    public void setMasterCredentials(String user, String password) {
+        this.masterUser = user;
+        this.masterPassword = password;
+    }
+
+    public String getReplicationId() {
+        return replicationId;
+    }
+
+    public long getOffset() {
+        ReplicationBacklog current = backlog;
+        return current == null ? 0 : current.end();
+    }
+
+    public int getReplicaCount() {
+        lock.lock();
+        try {
+            return replicas.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // held around applying a write and propagating it, reentrant so the deletes an eviction makes meanwhile go out too
+    public void lockWrites() {
+        lock.lock();
+    }
+
+    public void unlockWrites() {
+        lock.unlock();
+    }
+
+    // sends a command that ran here on to the replicas, and keeps it for the ones that come back. Returns the offset
+    // a replica has to acknowledge to have it, 0 while there never was a replica
+    public long propagate(String[] commandParts) {
+        if (backlog == null) return 0;
+        byte[] frame = BinaryFrame.encodeRequest(0, commandParts);
+        lock.lock();
+        try {
+            send(frame);
+            return backlog.end();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // PING to the replicas every REPL_PING_INTERVAL, a replica acknowledges at most that often unless asked to
+    public void heartbeat() {
+        byte[] ping = BinaryFrame.encodeRequest(0, "PING");
+        try {
+            while (true) {
+                Thread.sleep(Constants.REPL_PING_INTERVAL);
+                lock.lock();
+                try {
+                    if (!replicas.isEmpty()) send(ping);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // REPLCONF ACK from a replica, it applied the stream up to the offset
+    public void acknowledge(SocketItem socketItem, long offset) {
+        lock.lock();
+        try {
+            for (Replica replica : replicas) {
+                if (replica.socketItem == socketItem && offset > replica.acknowledged) {
+                    replica.acknowledged = offset;
+                    acknowledged.signalAll();
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // waits until the given number of replicas applied the stream up to the offset, or the time ran out, 0 millis
+    // waits for as long as it takes. Returns how many have it
+    public int await(long offset, int count, long millis) throws InterruptedException {
+        long nanos = millis == 0 ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(millis);
+        lock.lock();
+        try {
+            while (true) {
+                int have = 0;
+                for (Replica replica : replicas) {
+                    if (replica.acknowledged >= offset) have++;
+                }
+                if (have >= count || nanos <= 0) return have;
+                if (backlog != null && getAckOffset < offset) {
+                    // one GETACK answers for every write before it, the ones waiting meanwhile share it
+                    send(GETACK);
+                    getAckOffset = backlog.end();
+                }
+                nanos = acknowledged.awaitNanos(nanos);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // appends the frame to the backlog and every replica's output buffer. Holding the lock
+    private void send(byte[] frame) {
+        backlog.append(frame);
+        for (Iterator<Replica> iterator = replicas.iterator(); iterator.hasNext(); ) {
+            OutputBuffer outputBuffer = iterator.next().socketItem.getOutputBuffer();
+            try {
+                outputBuffer.write(frame);
+                outputBuffer.flush();
+            } catch (IOException e) {
+                logger.info("Dropping replica " + outputBuffer.describe() + " : " + e.getLocalizedMessage());
+                iterator.remove();
+            }
+        }
+    }
+
+    // PSYNC on the master, the connection is a replica from here on. Its handler never writes to it again, everything
+    // it is sent goes through here. A compressed replica gets the reply as it is and the rest deflated
+    public void psync(SocketItem replica, String id, long offset, boolean compressed) throws IOException, InterruptedException {
+        DataOutputStream out = replica.getOutputStream();
+        OutputBuffer outputBuffer = replica.getOutputBuffer();
+        outputBuffer.setClientClass(OutputBuffer.ClientClass.REPLICA);
+        boolean continues;
+        long from;
+        lock.lock();
+        try {
+            if (backlog == null) backlog = new ReplicationBacklog(backlogSize);
+            continues = replicationId.equals(id) && backlog.contains(offset);
+            from = continues ? offset : backlog.end();
+            if (continues) {
+                out.writeUTF("CONTINUE " + replicationId);
+            } else {
+                // the commands from here on wait in its output buffer until the dump went out
+                outputBuffer.hold();
+                replicas.add(new Replica(replica, from, outputBuffer.getWritten(), compressed));
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (continues) {
+            out.flush();    // outside the lock, this thread may write to the socket itself
+            if (compressed) {
+                outputBuffer.awaitBelow(0);
+                outputBuffer.compress();
+            }
+            follow(replica, from, compressed);
+            return;
+        }
+
+        // the keys as they are while the dump is written, a write landing meanwhile may be in the dump and in the
+        // commands after it as well, which leaves the replica the same
+        long startTime = System.currentTimeMillis();
+        Files.createDirectories(Constants.REPL_SYNC_DIRECTORY);
+        Path dump = Files.createTempFile(Constants.REPL_SYNC_DIRECTORY, "sync_", ".tmp");
+        try {
+            long keys = writeDump(dump, compressed);
+            try (FileChannel channel = FileChannel.open(dump, StandardOpenOption.READ)) {
+                ByteArrayOutputStream head = new ByteArrayOutputStream();
+                new DataOutputStream(head).writeUTF("FULLRESYNC " + replicationId + " " + from + " " + channel.size());
+                outputBuffer.transfer(head.toByteArray(), channel);
+                logger.info("Sent a dump of " + keys + " keys in " + channel.size() + " bytes to replica " + replica.getId()
+                        + " in " + (System.currentTimeMillis() - startTime) + " ms, it follows the stream from offset " + from
+                        + (compressed ? ", compressed" : ""));
+            }
+        } finally {
+            Files.deleteIfExists(dump);
+        }
+        outputBuffer.release(compressed);
+    }
+
+    // binary request frames setting every key, ENDSYNC at the end. Written to a file so it leaves the heap as it is
+    // made, however large the database
+    private long writeDump(Path dump, boolean compressed) throws IOException {
+        long keys = 0;
+        try (OutputStream file = new BufferedOutputStream(Files.newOutputStream(dump), 1 << 20);
+             OutputStream out = compressed ? new DeflaterOutputStream(file, new Deflater(Deflater.BEST_SPEED), 1 << 16) : file) {
+            for (SaveItem item : database.values()) {
+                if (item.hasExpired()) continue;
+                out.write(item.getTtl() == null
+                        ? BinaryFrame.encodeRequest(0, "SET", item.getKey(), item.getValue())
+                        : BinaryFrame.encodeRequest(0, "SETX", item.getKey(), item.getValue(), Long.toString(Math.max(1, item.getTtl() - System.currentTimeMillis()))));
+                keys++;
+            }
+            out.write(BinaryFrame.encodeRequest(0, "ENDSYNC"));
+        }
+        return keys;
+    }
+
+    // a replica continuing gets the stream from its offset on and every command after it
+    private void follow(SocketItem replica, long from, boolean compressed) throws IOException {
+        OutputBuffer outputBuffer = replica.getOutputBuffer();
+        long missed;
+        lock.lock();
+        try {
+            if (!backlog.contains(from)) {
+                throw new IOException("Offset " + from + " of replica " + replica.getId() + " left the backlog meanwhile");
+            }
+            missed = backlog.end() - from;
+            replicas.add(new Replica(replica, from, outputBuffer.getWritten(), compressed));
+            backlog.writeFrom(from, outputBuffer);
+        } finally {
+            lock.unlock();
+        }
+        outputBuffer.flush();
+        logger.info("Replica " + replica.getId() + " continues from offset " + from + ", sent the " + missed + " bytes it missed"
+                + (compressed ? ", compressed" : ""));
+    }
+
+    public void detach(SocketItem replica) {
+        lock.lock();
+        try {
+            if (replicas.removeIf(fed -> fed.socketItem == replica)) logger.info("Replica " + replica.getId() + " disconnected");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // REPLICAOF, follows the given master from now on, the one before is let go. False when no user to log in with
+    // was given here or at the start
+    public synchronized boolean replicaOf(String host, int port, String user, String password, boolean compressed) {
+        if (user == null) {
+            user = masterUser;
+            password = masterPassword;
+        }
+        if (user == null || password == null) return false;
+        if (link != null) link.stop();
+        link = new ReplicaLink(host, port, user, password, compressed, database, handlers);
+        Thread.startVirtualThread(link);
+        return true;
+    }
+
+    // REPLICAOF NO ONE, keeps the data and takes writes of its own
+    public synchronized void stopReplicating() {
+        if (link != null) link.stop();
+        link = null;
+    }
+
+    public ReplicaLink getLink() {
+        return link;
+    }
+
+    // how stale the keys here may be, 0 on a master and -1 on a replica that has no keys from its master yet
+    public long getLagMillis() {
+        ReplicaLink current = link;
+        return current == null ? 0 : current.getLagMillis();
+    }
+
+    public String info() {
+        ReplicaLink current = getLink();
+        StringBuilder info = new StringBuilder()
+                .append("role:").append(current == null ? "master" : "replica").append('\n')
+                .append("master_replid:").append(replicationId).append('\n')
+                .append("master_repl_offset:").append(getOffset()).append('\n')
+                .append("connected_replicas:").append(getReplicaCount());
+        lock.lock();
+        try {
+            long end = getOffset();
+            for (int i = 0; i < replicas.size(); i++) {
+                // offset is what went to the socket, ack_offset what the replica applied, lag is the stream still waiting here
+                Replica replica = replicas.get(i);
+                OutputBuffer outputBuffer = replica.socketItem.getOutputBuffer();
+                long offset = replica.sentOffset();
+                info.append('\n').append("replica").append(i).append(":id=").append(replica.socketItem.getId())
+                        .append(",offset=").append(offset)
+                        .append(",ack_offset=").append(replica.acknowledged)
+                        .append(",lag_bytes=").append(end - offset)
+                        .append(",lag_millis=").append(outputBuffer.getBehindMillis());
+                if (replica.compressed) {
+                    info.append(",compressed_bytes=").append(outputBuffer.getCompressedSent());
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (current != null) {
+            info.append('\n').append(current.info());
+        }
+        return info.toString();
+    }
+}
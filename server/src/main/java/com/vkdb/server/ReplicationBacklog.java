@@ -0,0 +1,56 @@
+package com.vkdb.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+// The last bytes of the replication stream in a ring, a replica that was gone for a moment gets what it missed from
+// here instead of the whole database. Offsets count the bytes of the stream since the backlog was made. Not thread
+// safe, the replication lock guards it
+public class ReplicationBacklog {
+    private final byte[] ring;
+    private long end = 0;   // offset right after the last byte written
+
+    public ReplicationBacklog(int size) {
+        this.ring = new byte[size];
+    }
+
+    public void append(byte[] bytes) {
+        int offset = Math.max(0, bytes.length - ring.length);   // of a write bigger than the ring only its end fits
+        long position = end + offset;
+        while (offset < bytes.length) {
+            int at = (int) (position % ring.length);
+            int length = Math.min(bytes.length - offset, ring.length - at);
+            System.arraycopy(bytes, offset, ring, at, length);
+            offset += length;
+            position += length;
+        }
+        end += bytes.length;
+    }
+
+    public long start() {
+        return Math.max(0, end - ring.length);
+    }
+
+    public long end() {
+        return end;
+    }
+
+    // whether a replica that has the stream up to the offset can go on from here
+    public boolean contains(long offset) {
+        return offset >= start() && offset <= end;
+    }
+
+    // writes the stream from the offset up to now
+    public void writeFrom(long offset, OutputStream out) throws IOException {
+        while (offset < end) {
+            int at = (int) (offset % ring.length);
+            int length = (int) Math.min(end - offset, ring.length - at);
+            out.write(ring, at, length);
+            offset += length;
+        }
+    }
+
+    public int size() {
+        return ring.length;
+    }
+}
@@ -0,0 +1,14 @@
+package com.vkdb.server;
+
+// What a command answers, saying outright whether it is an error. The text alone can't tell, a stored value may well
+// start with ERROR
+public record Reply(String text, boolean error) {
+
+    public static Reply ok(String text) {
+        return new Reply(text, false);
+    }
+
+    public static Reply error(String text) {
+        return new Reply(text, true);
+    }
+}
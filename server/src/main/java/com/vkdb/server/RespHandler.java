@@ -0,0 +1,301 @@
+package com.vkdb.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+
+/*
+ * Speaks RESP2 on its own port, so redis-cli, redis-benchmark and redis client libraries can drive vkdb
+ *
+ * requests are arrays of bulk strings or inline commands. The redis commands are turned into their vkdb counterparts
+ * and run through a ClientHandler like on a text connection, the replies are turned back into resp types. Replies
+ * are buffered and flushed once no further pipelined request is waiting
+ */
+public class RespHandler implements Runnable {
+    private static final Logger logger = Logger.getLogger(RespHandler.class.getName());
+    private static final int MAX_ARGUMENTS = 1024 * 1024;
+
+    private final SocketItem socketItem;
+    private final ClientHandler clientHandler;
+    private int subscriptions = 0;
+    private boolean quit = false;
+
+    public RespHandler(SocketItem socketItem, ClientHandler clientHandler) {
+        this.socketItem = socketItem;
+        this.clientHandler = clientHandler;
+    }
+
+    @Override
+    public void run() {
+        socketItem.setProtocol(SocketItem.Protocol.RESP);
+        logger.info("Resp client connected from " + socketItem.getId());
+        if (socketItem.getOutputBuffer() != null) socketItem.getOutputBuffer().setOwner(Thread.currentThread());
+
+        DataInputStream in = socketItem.getInputStream();
+        DataOutputStream out = socketItem.getOutputStream();
+        try {
+            while (!quit) {
+                String[] args = readCommand(in);
+                if (args == null) break;
+                if (args.length == 0) continue;
+
+                byte[] reply = handle(args);
+                if (reply == null) break;
+                out.write(reply);
+                if (!socketItem.hasPendingInput()) out.flush();
+            }
+            out.flush();
+        } catch (EOFException | SocketException e) {
+            // the client went away
+        } catch (Exception e) {
+            logger.info("Got an error " + e.getLocalizedMessage());
+        } finally {
+            clientHandler.cleanupNotifications();
+            try {
+                socketItem.close();
+            } catch (IOException e) {
+                // already gone
+            }
+            logger.info("Resp client disconnected from " + socketItem.getId());
+        }
+    }
+
+    private byte[] handle(String[] args) {
+        String name = args[0].toUpperCase();
+        return switch (name) {
+            case "PING" -> args.length > 1 ? bulk(args[1]) : simple("PONG");
+            case "ECHO" -> args.length == 2 ? bulk(args[1]) : wrongArguments(name);
+            case "QUIT" -> {
+                quit = true;
+                yield simple("OK");
+            }
+            case "SELECT" -> args.length == 2 && args[1].equals("0") ? simple("OK") : error("ERR only database 0 exists");
+            case "CONFIG" -> encodeArray(List.of());    // nothing to report, redis-benchmark asks on startup
+            case "AUTH" -> {
+                if (args.length != 3) yield error("ERR use AUTH <username> <password>");
+                Reply output = run("LOGIN", args[1], args[2]);
+                if (output == null) yield null;
+                yield output.error() ? error("WRONGPASS " + output.text()) : simple("OK");
+            }
+            case "GET" -> {
+                if (args.length != 2) yield wrongArguments(name);
+                Reply output = run("GET", args[1]);
+                yield output != null && !output.error() && output.text().equals("NOT FOUND") ? nil() : reply(output);
+            }
+            case "SET" -> {
+                if (args.length < 3) yield wrongArguments(name);
+                if (args.length == 3) yield saved(run("SET", args[1], args[2]));
+                if (args.length != 5) yield error("ERR only SET key value [EX seconds|PX milliseconds] is supported");
+                Long ttl = ttlOf(args[3], args[4]);
+                yield ttl == null ? error("ERR syntax error") : saved(run("SETX", args[1], args[2], Long.toString(ttl)));
+            }
+            case "SETEX", "PSETEX" -> {
+                if (args.length != 4) yield wrongArguments(name);
+                Long ttl = ttlOf(name.equals("SETEX") ? "EX" : "PX", args[2]);
+                yield ttl == null ? error("ERR value is not an integer or out of range") : saved(run("SETX", args[1], args[3], Long.toString(ttl)));
+            }
+            case "DEL" -> {
+                if (args.length < 2) yield wrongArguments(name);
+                Reply output = clientHandler.execute(withName(args, "MDEL"));
+                if (output == null || output.error()) yield reply(output);
+                yield integer(Long.parseLong(output.text().substring("DELETED ".length())));
+            }
+            case "MSET" -> args.length < 3 || args.length % 2 == 0 ? wrongArguments(name) : saved(clientHandler.execute(withName(args, name)));
+            case "MGET" -> {
+                if (args.length < 2) yield wrongArguments(name);
+                Reply output = clientHandler.execute(withName(args, name));
+                if (output == null || output.error()) yield reply(output);
+                String[] values = output.text().split("\n", -1);
+                if (values.length != args.length - 1) {
+                    // some value holds a line break, the keys are read one at a time instead
+                    values = new String[args.length - 1];
+                    for (int i = 0; i < values.length; i++) {
+                        Reply value = run("GET", args[i + 1]);
+                        if (value == null || value.error()) yield reply(value);
+                        values[i] = value.text();
+                    }
+                }
+                byte[][] elements = new byte[values.length][];
+                for (int i = 0; i < values.length; i++) {
+                    elements[i] = values[i].equals("NOT FOUND") ? nil() : bulk(values[i]);
+                }
+                yield array(elements);
+            }
+            case "KEYS" -> {
+                if (args.length != 2) yield wrongArguments(name);
+                List<String> keys = new ArrayList<>();
+                String cursor = "0";
+                do {
+                    Reply output = run("SCAN", cursor, "MATCH", args[1], "COUNT", Integer.toString(Constants.SCAN_MAX_COUNT));
+                    if (output == null || output.error()) yield reply(output);
+                    String[] lines = output.text().split("\n");
+                    cursor = lines[0];
+                    keys.addAll(Arrays.asList(lines).subList(1, lines.length));
+                } while (!cursor.equals("0"));
+                yield encodeArray(keys);
+            }
+            case "SCAN" -> {
+                Reply output = clientHandler.execute(withName(args, name));
+                if (output == null || output.error()) yield reply(output);
+                String[] lines = output.text().split("\n");
+                yield array(bulk(lines[0]), encodeArray(Arrays.asList(lines).subList(1, lines.length)));
+            }
+            case "SUBSCRIBE" -> {
+                if (args.length < 2) yield wrongArguments(name);
+                ByteArrayOutputStream replies = new ByteArrayOutputStream();
+                for (int i = 1; i < args.length; i++) {
+                    Reply output = run("NOTIFY", args[i]);
+                    if (output == null || output.error()) yield reply(output);
+                    replies.writeBytes(array(bulk("subscribe"), bulk(args[i]), integer(++subscriptions)));
+                }
+                yield replies.toByteArray();
+            }
+            case "UNSUBSCRIBE" -> {
+                if (args.length < 2) yield wrongArguments(name);
+                ByteArrayOutputStream replies = new ByteArrayOutputStream();
+                for (int i = 1; i < args.length; i++) {
+                    Reply output = run("UNNOTIFY", args[i]);
+                    if (output == null || output.error()) yield reply(output);
+                    if (output.text().equals("OK")) subscriptions--;
+                    replies.writeBytes(array(bulk("unsubscribe"), bulk(args[i]), integer(subscriptions)));
+                }
+                yield replies.toByteArray();
+            }
+            case "INFO" -> {
+                Reply output = run("INFO");
+                yield output == null || output.error() ? reply(output) : bulk(output.text().replace("\n", "\r\n"));
+            }
+            default -> reply(clientHandler.execute(withName(args, name)));
+        };
+    }
+
+    private static String[] withName(String[] args, String name) {
+        String[] command = args.clone();
+        command[0] = name;
+        return command;
+    }
+
+    private Reply run(String... command) {
+        return clientHandler.execute(command);
+    }
+
+    private static byte[] saved(Reply output) {
+        return output != null && !output.error() && output.text().equals("SAVED") ? simple("OK") : reply(output);
+    }
+
+    // anything without a redis shape of its own goes back as a bulk string, or an error for the vkdb errors
+    private static byte[] reply(Reply output) {
+        if (output == null) return null;
+        if (!output.error()) return bulk(output.text());
+        if (output.text().equals("ERROR PLEASE LOGIN")) return error("NOAUTH Authentication required.");
+        return error("ERR " + output.text().replaceFirst("^ERROR ", "").replaceAll("[\r\n]+", " "));
+    }
+
+    private static byte[] wrongArguments(String name) {
+        return error("ERR wrong number of arguments for '" + name.toLowerCase() + "' command");
+    }
+
+    private static Long ttlOf(String unit, String amount) {
+        try {
+            long value = Long.parseLong(amount);
+            if (value <= 0) return null;
+            return switch (unit.toUpperCase()) {
+                case "EX" -> value * 1000;
+                case "PX" -> value;
+                default -> null;
+            };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // null at the end of the stream, an empty array for a blank inline line
+    private static String[] readCommand(DataInputStream in) throws IOException {
+        int first = in.read();
+        if (first == -1) return null;
+        if (first != '*') {
+            String line = (char) first + readLine(in);
+            return line.isBlank() ? new String[0] : line.trim().split("\\s+");
+        }
+
+        int count = parseLength(readLine(in), MAX_ARGUMENTS);
+        String[] args = new String[count];
+        for (int i = 0; i < count; i++) {
+            if (in.readByte() != '$') throw new ProtocolException("Expected a bulk string");
+            byte[] bytes = new byte[parseLength(readLine(in), Constants.MAX_REQUEST_SIZE)];
+            in.readFully(bytes);
+            in.skipNBytes(2);
+            args[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        return args;
+    }
+
+    private static String readLine(DataInputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b == -1) throw new EOFException();
+            if (b != '\r') line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    private static int parseLength(String line, int max) throws ProtocolException {
+        try {
+            int length = Integer.parseInt(line.trim());
+            if (length >= 0 && length <= max) return length;
+        } catch (NumberFormatException e) {
+            // reported below
+        }
+        throw new ProtocolException("Bad length " + line);
+    }
+
+    static byte[] encodeArray(List<String> items) {
+        byte[][] elements = new byte[items.size()][];
+        for (int i = 0; i < elements.length; i++) {
+            elements[i] = bulk(items.get(i));
+        }
+        return array(elements);
+    }
+
+    private static byte[] array(byte[]... elements) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(("*" + elements.length + "\r\n").getBytes(StandardCharsets.UTF_8));
+        Arrays.stream(elements).forEach(out::writeBytes);
+        return out.toByteArray();
+    }
+
+    private static byte[] bulk(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length + 16);
+        out.writeBytes(("$" + bytes.length + "\r\n").getBytes(StandardCharsets.UTF_8));
+        out.writeBytes(bytes);
+        out.writeBytes(new byte[]{'\r', '\n'});
+        return out.toByteArray();
+    }
+
+    private static byte[] simple(String value) {
+        return ("+" + value + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] error(String message) {
+        return ("-" + message + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] integer(long value) {
+        return (":" + value + "\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] nil() {
+        return "$-1\r\n".getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -5,12 +5,24 @@ public class SaveItem {
     private final String value;
     private String operation;
     private final Long ttl;
+    private volatile long segmentId = -1;   // log segment holding the latest record of this item, -1 when unknown
+    private volatile long lastAccess = System.currentTimeMillis();
+    private volatile int frequency = Evictor.INITIAL_FREQUENCY;    // logarithmic access counter used by lfu eviction
 
     public SaveItem(String key, String value, String operation, Long ttl) {
+        this(key, value, operation, ttl, System.currentTimeMillis());
+    }
+
+    private SaveItem(String key, String value, String operation, Long ttl, long from) {
         this.key = key;
         this.value = value;
         this.operation = operation;
-        this.ttl = System.currentTimeMillis() + ttl;
+        this.ttl = from + ttl;
+    }
+
+    // used when the absolute expiry time is already known, like when replaying the log
+    public static SaveItem withExpiry(String key, String value, String operation, long expiresAt) {
+        return new SaveItem(key, value, operation, expiresAt, 0L);
     }
 
     public SaveItem(String key, String value, String operation) {
@@ -29,6 +41,36 @@ public class SaveItem {
         this.operation = operation;
     }
 
+    public long getSegmentId() {
+        return segmentId;
+    }
+
+    public void setSegmentId(long segmentId) {
+        this.segmentId = segmentId;
+    }
+
+    // called by the stores on every read and write of the key
+    public void touch() {
+        frequency = Evictor.incrementFrequency(Evictor.decayFrequency(frequency, lastAccess));
+        lastAccess = System.currentTimeMillis();
+    }
+
+    public long getLastAccess() {
+        return lastAccess;
+    }
+
+    public void setLastAccess(long lastAccess) {
+        this.lastAccess = lastAccess;
+    }
+
+    public int getFrequency() {
+        return frequency;
+    }
+
+    public void setFrequency(int frequency) {
+        this.frequency = frequency;
+    }
+
     public Long getTtl() {
         return ttl;
     }
@@ -41,7 +83,7 @@ public class SaveItem {
         return key;
     }
 
-    private String getOperation() {
+    public String getOperation() {
         return operation;
     }
 
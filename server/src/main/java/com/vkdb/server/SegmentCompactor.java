@@ -0,0 +1,143 @@
+package com.vkdb.server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+// Rewrites runs of sealed log segments without the records later writes made useless, the active segment is never
+// touched so writers keep appending while this runs
+public class SegmentCompactor {
+    private static final Logger logger = Logger.getLogger(SegmentCompactor.class.getName());
+    private static final long READ_WINDOW_SIZE = 1L << 30;
+
+    private final Store database;
+    private final SegmentedLog log;
+    private final AofWriter aofWriter;
+    private final Snapshotter snapshotter;
+
+    public SegmentCompactor(Store database, SegmentedLog log, AofWriter aofWriter, Snapshotter snapshotter) {
+        this.database = database;
+        this.log = log;
+        this.aofWriter = aofWriter;
+        this.snapshotter = snapshotter;
+    }
+
+    public void compact() throws IOException {
+        List<SegmentedLog.Segment> segments = log.segments();
+        List<SegmentedLog.Segment> sealed = segments.subList(0, segments.size() - 1);
+        Set<Long> boundaries = snapshotter.boundaries();
+
+        // adjacent segments are merged while they fit in one segment, a snapshot has to keep finding the segment it starts at
+        List<SegmentedLog.Segment> group = new ArrayList<>();
+        long groupSize = 0;
+        for (SegmentedLog.Segment segment : sealed) {
+            long size = Files.size(log.pathOf(segment));
+            if (!group.isEmpty() && (groupSize + size > Constants.SEGMENT_SIZE || boundaries.contains(segment.first()))) {
+                compactGroup(group, groupSize, group.getFirst().equals(segments.getFirst()) && boundaries.isEmpty());
+                group = new ArrayList<>();
+                groupSize = 0;
+            }
+            group.add(segment);
+            groupSize += size;
+        }
+
+        if (!group.isEmpty()) {
+            compactGroup(group, groupSize, group.getFirst().equals(segments.getFirst()) && boundaries.isEmpty());
+        }
+    }
+
+    // with nothing older to hide, the oldest segments can drop their deletes as well
+    private void compactGroup(List<SegmentedLog.Segment> group, long groupSize, boolean isOldest) throws IOException {
+        long first = group.getFirst().first();
+        long last = group.getLast().last();
+
+        Map<String, SaveItem> latest = new LinkedHashMap<>();
+        for (SegmentedLog.Segment segment : group) {
+            readInto(segment, latest);
+        }
+
+        List<SaveItem> kept = new ArrayList<>();
+        long keptSize = LogRecord.HEADER_SIZE;
+        for (SaveItem item : latest.values()) {
+            SaveItem current = database.peek(item.getKey());
+            if (current != null && current.getSegmentId() > last) {
+                continue; // a later segment has a newer record for the key
+            }
+
+            boolean dead = current == null || item.getOperation().equals("D") || item.hasExpired();
+            if (dead && isOldest) {
+                continue;
+            }
+
+            // a dead key still needs a delete here, otherwise replay would bring back what older segments hold
+            SaveItem record = dead && !item.getOperation().equals("D") ? new SaveItem(item.getKey(), null, "D") : item;
+            kept.add(record);
+            keptSize += LogRecord.encode(record).length;
+        }
+
+        if (group.size() == 1 && keptSize > groupSize * Constants.COMPACTION_GARBAGE_RATIO) {
+            return; // not enough garbage in a single segment to be worth rewriting
+        }
+
+        Path output = log.compactedPathFor(first, last);
+        try (FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+             OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 20)) {
+            out.write(LogRecord.header(System.currentTimeMillis()));
+            for (SaveItem item : kept) {
+                out.write(LogRecord.encode(item));
+            }
+            out.flush();
+            channel.force(true);
+        }
+
+        // the records that made the dropped ones useless must be on disk before the old segments go away
+        aofWriter.flush();
+
+        SegmentedLog.Segment replacement = new SegmentedLog.Segment(first, last, output.getFileName().toString());
+        if (!log.replace(group, replacement)) {
+            Files.deleteIfExists(output);
+            logger.info("Segments " + first + " to " + last + " changed during compaction, leaving them as they are");
+            return;
+        }
+
+        logger.info("Compacted segments " + first + " to " + last + " from " + groupSize + " to " + Files.size(output)
+                + " bytes, " + kept.size() + " of " + latest.size() + " keys kept");
+    }
+
+    // sealed segments were forced before they were sealed, any bad record in them is real damage
+    private void readInto(SegmentedLog.Segment segment, Map<String, SaveItem> latest) throws IOException {
+        try (FileChannel channel = FileChannel.open(log.pathOf(segment), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = LogRecord.HEADER_SIZE;
+
+            while (position < size) {
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(READ_WINDOW_SIZE, size - position));
+                LogReader reader = new LogReader(window, position);
+
+                SaveItem item;
+                while ((item = reader.next()) != null) {
+                    latest.put(item.getKey(), item);
+                }
+
+                // a torn record at the end of a window just continues in the next one
+                boolean atEnd = position + window.limit() == size;
+                if (reader.isCorrupt() || (reader.isTorn() && atEnd) || reader.getValidOffset() == position) {
+                    throw new IOException("Segment " + segment.fileName() + " has a bad record at offset " + reader.getValidOffset());
+                }
+                position = reader.getValidOffset();
+            }
+        }
+    }
+}
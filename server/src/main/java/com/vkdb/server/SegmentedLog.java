@@ -0,0 +1,183 @@
+package com.vkdb.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/*
+ * The append only log as a directory of segments, only the last one (the active segment) receives appends
+ *
+ * every segment covers a range of segment ids, a fresh segment covers just its own id and a merged one covers
+ * the ids of all the segments it replaced. The manifest lists them in order, one "<first> <last> <file>" per line,
+ * and is always replaced atomically so a crash leaves either the old or the new list
+ */
+public class SegmentedLog {
+    private static final Logger logger = Logger.getLogger(SegmentedLog.class.getName());
+    private static final String MANIFEST_FILE = "MANIFEST";
+    private static final String MANIFEST_HEADER = "vkdb-manifest 1";
+    private static final String SEGMENT_PREFIX = "segment_";
+
+    public record Segment(long first, long last, String fileName) {
+    }
+
+    private final Path directory;
+    private final List<Segment> segments = new ArrayList<>();
+
+    public SegmentedLog(Path directory) {
+        this.directory = directory;
+    }
+
+    public synchronized void open() throws IOException {
+        Files.createDirectories(directory);
+
+        if (Files.exists(directory.resolve(MANIFEST_FILE))) {
+            readManifest();
+        } else {
+            migrateSingleFileLog();
+        }
+
+        if (segments.isEmpty()) {
+            segments.add(createSegment(1));
+            writeManifest();
+        }
+
+        removeUnreferencedFiles();
+        logger.info("Append only log has " + segments.size() + " segments in " + directory.toAbsolutePath()
+                + ", active segment " + active().first());
+    }
+
+    public synchronized List<Segment> segments() {
+        return new ArrayList<>(segments);
+    }
+
+    public synchronized Segment active() {
+        return segments.getLast();
+    }
+
+    public Path pathOf(Segment segment) {
+        return directory.resolve(segment.fileName());
+    }
+
+    // seals the active segment and starts the next one, the caller makes sure nothing is writing
+    public synchronized Segment roll() throws IOException {
+        Segment next = createSegment(active().last() + 1);
+        segments.add(next);
+        writeManifest();
+        return next;
+    }
+
+    // swaps a run of sealed segments for their compacted replacement, false when the run changed meanwhile
+    public synchronized boolean replace(List<Segment> replaced, Segment replacement) throws IOException {
+        int start = segments.indexOf(replaced.getFirst());
+        if (start < 0 || start + replaced.size() >= segments.size()
+                || !segments.subList(start, start + replaced.size()).equals(replaced)) {
+            return false;
+        }
+
+        segments.subList(start, start + replaced.size()).clear();
+        segments.add(start, replacement);
+        writeManifest();
+
+        for (Segment segment : replaced) {
+            Files.deleteIfExists(pathOf(segment));
+        }
+        return true;
+    }
+
+    // drops the sealed segments a snapshot already covers completely
+    public synchronized void dropSegmentsBefore(long segmentId) throws IOException {
+        List<Segment> dropped = new ArrayList<>();
+        while (segments.size() > 1 && segments.getFirst().last() < segmentId) {
+            dropped.add(segments.removeFirst());
+        }
+        if (dropped.isEmpty()) return;
+
+        writeManifest();
+        for (Segment segment : dropped) {
+            Files.deleteIfExists(pathOf(segment));
+        }
+        logger.info("Dropped " + dropped.size() + " segments covered by snapshots, oldest segment is now " + segments.getFirst().first());
+    }
+
+    public Path compactedPathFor(long first, long last) {
+        return directory.resolve(SEGMENT_PREFIX + first + "_" + last + "." + System.currentTimeMillis() + ".vdb");
+    }
+
+    private Segment createSegment(long id) throws IOException {
+        Segment segment = new Segment(id, id, SEGMENT_PREFIX + id + ".vdb");
+        try (FileChannel channel = FileChannel.open(pathOf(segment), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(LogRecord.header(System.currentTimeMillis())));
+            channel.force(true);
+        }
+        return segment;
+    }
+
+    // the log used to be a single file next to the server, it becomes the first segment
+    private void migrateSingleFileLog() throws IOException {
+        Path legacy = Constants.APPEND_ONLY_LOG_FILE_PATH;
+        if (!Files.exists(legacy) || Files.size(legacy) == 0) return;
+
+        LogConverter.convertIfLegacy(legacy);
+        Segment segment = new Segment(1, 1, SEGMENT_PREFIX + "1.vdb");
+        Files.move(legacy, pathOf(segment), StandardCopyOption.ATOMIC_MOVE);
+        segments.add(segment);
+        writeManifest();
+        logger.info("Moved " + legacy.toAbsolutePath() + " into the segmented log as its first segment");
+    }
+
+    private void readManifest() throws IOException {
+        List<String> lines = Files.readAllLines(directory.resolve(MANIFEST_FILE));
+        if (lines.isEmpty() || !lines.getFirst().equals(MANIFEST_HEADER)) {
+            throw new IOException("Unknown manifest format in " + directory.toAbsolutePath());
+        }
+
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.isBlank()) continue;
+            String[] parts = line.split(" ");
+            Segment segment = new Segment(Long.parseLong(parts[0]), Long.parseLong(parts[1]), parts[2]);
+            if (!Files.exists(pathOf(segment))) {
+                throw new IOException("Segment " + segment.fileName() + " listed in the manifest is missing");
+            }
+            segments.add(segment);
+        }
+    }
+
+    private void writeManifest() throws IOException {
+        StringBuilder builder = new StringBuilder(MANIFEST_HEADER).append('\n');
+        for (Segment segment : segments) {
+            builder.append(segment.first()).append(' ').append(segment.last()).append(' ').append(segment.fileName()).append('\n');
+        }
+
+        Path temp = directory.resolve(MANIFEST_FILE + ".tmp");
+        Files.writeString(temp, builder);
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temp, directory.resolve(MANIFEST_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // compactions that crashed before the manifest swap leave their output behind, nothing refers to it
+    private void removeUnreferencedFiles() throws IOException {
+        Set<String> referenced = new HashSet<>();
+        segments.forEach(segment -> referenced.add(segment.fileName()));
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*")) {
+            for (Path path : stream) {
+                if (!referenced.contains(path.getFileName().toString())) {
+                    logger.info("Removing unreferenced segment file " + path.getFileName());
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+}
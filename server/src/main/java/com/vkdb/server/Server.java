@@ -3,8 +3,10 @@ package com.vkdb.server;
 import org.apache.commons.cli.*;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -15,13 +17,20 @@ import java.util.logging.Logger;
 
 public class Server {
     private static final Logger logger = Logger.getLogger(Server.class.getName());
-    private static final ConcurrentHashMap<String, NotifyItem> keySocketsMap = new ConcurrentHashMap<>();
-    private static final ConcurrentHashMap<String, SaveItem> database = new ConcurrentHashMap<>();
-    private static final LinkedBlockingQueue<SaveItem> diskWriteItems = new LinkedBlockingQueue<>();
+    private static final Subscriptions subscriptions = new Subscriptions();
+    private static final LinkedBlockingQueue<SaveItem> diskWriteItems = new LinkedBlockingQueue<>(Constants.DISK_WRITE_QUEUE_CAPACITY);
     private static final ConcurrentHashMap<String, AuthUser> authUsers = new ConcurrentHashMap<>();
-    private static final LinkedBlockingQueue<NotifyItem> notificationsQueue = new LinkedBlockingQueue<>();
-    private static final LinkedList<SocketItem> replicas = new LinkedList<>();
+    private static final LinkedBlockingQueue<Notification> notificationsQueue = new LinkedBlockingQueue<>();
     private static final Lock lock = new ReentrantLock();
+    private static final SegmentedLog segmentedLog = new SegmentedLog(Constants.LOG_DIRECTORY);
+    private static Store database;
+    private static Evictor evictor;
+    private static Expirer expirer;
+    private static Replication replication;
+    private static AofWriter aofWriter;
+    private static Snapshotter snapshotter;
+    private static SegmentCompactor segmentCompactor;
+    private static ChangeLog changeLog;     // null unless changes are kept
 
     public static void main(String[] args) {
         Options options = new Options();
@@ -34,7 +43,7 @@ public class Server {
                 .build();
 
         Option replicaHostOption = Option.builder()
-                .hasArg(false)
+                .hasArg(true)
                 .option("rh")
                 .longOpt("rhost")
                 .desc("Master server host to connect")
@@ -42,7 +51,7 @@ public class Server {
                 .build();
 
         Option replicaPortOption = Option.builder()
-                .hasArg(false)
+                .hasArg(true)
                 .option("rp")
                 .longOpt("rport")
                 .desc("Master server port to connect")
@@ -50,7 +59,7 @@ public class Server {
                 .build();
 
         Option replicaUserOption = Option.builder()
-                .hasArg(false)
+                .hasArg(true)
                 .option("ru")
                 .longOpt("ruser")
                 .desc("The user for this replica to connect to master")
@@ -58,29 +67,136 @@ public class Server {
                 .build();
 
         Option replicaPasswordOption = Option.builder()
-                .hasArg(false)
-                .option("rp")
+                .hasArg(true)
+                .option("rpw")
                 .longOpt("rpass")
                 .desc("The password for this replica to connect to master")
                 .required(false)
                 .build();
 
+        Option fsyncOption = Option.builder()
+                .hasArg(true)
+                .option("fs")
+                .longOpt("fsync")
+                .desc("When to fsync the append only log : always, everysec or no (default everysec)")
+                .required(false)
+                .build();
+
+        Option storeOption = Option.builder()
+                .hasArg(true)
+                .option("st")
+                .longOpt("store")
+                .desc("Where keys and values are kept : heap or offheap (default heap)")
+                .required(false)
+                .build();
+
+        Option maxMemoryOption = Option.builder()
+                .hasArg(true)
+                .option("mm")
+                .longOpt("maxmemory")
+                .desc("Memory budget for keys and values like 512mb or 2gb, 0 for no limit (default 0)")
+                .required(false)
+                .build();
+
+        Option evictionOption = Option.builder()
+                .hasArg(true)
+                .option("ev")
+                .longOpt("eviction")
+                .desc("What to do when over maxmemory : noeviction, allkeys-lru, allkeys-lfu, volatile-ttl or tinylfu (default noeviction)")
+                .required(false)
+                .build();
+
+        Option respPortOption = Option.builder()
+                .hasArg(true)
+                .option("rsp")
+                .longOpt("resp-port")
+                .desc("Also accept redis clients speaking resp on this port, off by default")
+                .required(false)
+                .build();
 
         options.addOption(portOption);
         options.addOption(replicaHostOption);
         options.addOption(replicaPortOption);
         options.addOption(replicaUserOption);
         options.addOption(replicaPasswordOption);
+        options.addOption(fsyncOption);
+        options.addOption(storeOption);
+        options.addOption(maxMemoryOption);
+        options.addOption(evictionOption);
+        Option outputLimitOption = Option.builder()
+                .hasArg(true)
+                .option("obl")
+                .longOpt("output-buffer-limit")
+                .desc("Unsent output a client may have as \"<normal|subscriber|replica> <hard> <soft> <seconds>\", can be given for each class (default normal 0 0 0, subscriber 32mb 8mb 60, replica 256mb 64mb 60)")
+                .required(false)
+                .build();
+
+        Option changesRetentionOption = Option.builder()
+                .hasArg(true)
+                .option("chr")
+                .longOpt("changes-retention")
+                .desc("Seconds every change is kept for consumers reading it with CHANGES, 0 keeps none (default 0)")
+                .required(false)
+                .build();
+
+        options.addOption(respPortOption);
+        options.addOption(outputLimitOption);
+        options.addOption(changesRetentionOption);
+        Option replBacklogOption = Option.builder()
+                .hasArg(true)
+                .option("rbs")
+                .longOpt("repl-backlog-size")
+                .desc("Bytes of the replication stream kept for replicas that lost their connection, like 1mb (default 1mb)")
+                .required(false)
+                .build();
+        options.addOption(replBacklogOption);
+        Option replCompressionOption = Option.builder()
+                .hasArg(false)
+                .option("rc")
+                .longOpt("repl-compression")
+                .desc("Asks the master to deflate the replication stream, for replicas on a slow link")
+                .required(false)
+                .build();
+        options.addOption(replCompressionOption);
 
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
         CommandLine cmd;
 
         int port; // port to run on
+        int respPort;
+        String masterHost;
+        int masterPort;
+        boolean replCompression;
+        AofWriter.FsyncPolicy fsyncPolicy;
 
         try {
             cmd = parser.parse(options, args);
             port = Integer.parseInt(cmd.getOptionValue("port") == null ? "6969" : cmd.getOptionValue("port"));
+            respPort = Integer.parseInt(cmd.getOptionValue("resp-port", "0"));
+            fsyncPolicy = AofWriter.FsyncPolicy.parse(cmd.getOptionValue("fsync", Constants.DEFAULT_FSYNC_POLICY));
+            database = Store.create(cmd.getOptionValue("store", Constants.DEFAULT_STORE));
+            long backlogSize = Evictor.parseMemory(cmd.getOptionValue("repl-backlog-size", Constants.DEFAULT_REPL_BACKLOG_SIZE));
+            if (backlogSize <= 0 || backlogSize > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("The replication backlog has to be between 1 byte and 2gb");
+            }
+            replication = new Replication(database, (int) backlogSize, Server::newClientHandler);
+            replication.setMasterCredentials(cmd.getOptionValue("ruser"), cmd.getOptionValue("rpass"));
+            masterHost = cmd.getOptionValue("rhost");
+            masterPort = Integer.parseInt(cmd.getOptionValue("rport", "0"));
+            replCompression = cmd.hasOption("repl-compression");
+            evictor = new Evictor(database, diskWriteItems, replication,
+                    Evictor.parseMemory(cmd.getOptionValue("maxmemory", Constants.DEFAULT_MAX_MEMORY)),
+                    Evictor.Policy.parse(cmd.getOptionValue("eviction", Constants.DEFAULT_EVICTION_POLICY)));
+            expirer = new Expirer(database, diskWriteItems, replication);
+            for (String limit : cmd.getOptionValues("output-buffer-limit") == null ? new String[0] : cmd.getOptionValues("output-buffer-limit")) {
+                String[] parts = limit.trim().split("\\s+", 2);
+                OutputBuffer.setLimits(parts[0], OutputBuffer.Limits.parse(parts.length > 1 ? parts[1] : ""));
+            }
+            long changesRetention = Long.parseLong(cmd.getOptionValue("changes-retention", Constants.DEFAULT_CHANGES_RETENTION));
+            if (changesRetention > 0) {
+                changeLog = new ChangeLog(Constants.CHANGES_DIRECTORY, changesRetention * 1000);
+            }
         } catch (Exception e) {
             logger.info(e.getLocalizedMessage());
             formatter.printHelp("utility-name", options);
@@ -88,41 +204,55 @@ public class Server {
             return;
         }
 
-        try (ServerSocket server = new ServerSocket(port)) {
-            logger.info("Server is ready to accept connections on port " + port);
-
-            try {
-                lock.lock();
-                Files.createFile(Constants.APPEND_ONLY_LOG_FILE_PATH);   // creating file for append only log if not exists
-                lock.unlock();
-            } catch (FileAlreadyExistsException e) {
-                lock.unlock();
-                logger.info("Append only log file exists at " + Constants.APPEND_ONLY_LOG_FILE_PATH.toAbsolutePath());
-            }
-
+        // a channel so a full sync can send its dump to a replica with transferTo
+        try (ServerSocketChannel server = ServerSocketChannel.open().bind(new InetSocketAddress(port))) {
             try {
                 Files.createFile(Constants.USER_LIST_PATH);   // creating file for storing users if not exists
             } catch (FileAlreadyExistsException e) {
                 logger.info("Users list file exists at " + Constants.USER_LIST_PATH.toAbsolutePath());
             }
 
+            aofWriter = new AofWriter(segmentedLog, database, diskWriteItems, lock, fsyncPolicy, changeLog);
+            snapshotter = new Snapshotter(database, lock, aofWriter, segmentedLog, Constants.LOG_DIRECTORY);
+            segmentCompactor = new SegmentCompactor(database, segmentedLog, aofWriter, snapshotter);
+
+            // loading everything before accepting, so no client sees a half loaded database
+            handleLoadUsers();
+            handleLoadDatabase();
+
             // Starting 5 virtual threads to handle different tasks
             Thread.startVirtualThread(Server::handleNotifications);     // To handle notifications sending to other clients
-            Thread.startVirtualThread(Server::handlePersistence);       // To handle saving items
-            Thread.startVirtualThread(Server::handleTtlExpiration);     // To handle expiring keys
+            Thread.startVirtualThread(aofWriter);                       // To handle saving items
+            Thread.startVirtualThread(expirer);                          // To handle expiring keys
             Thread.startVirtualThread(Server::handleCompaction);        // to handle compaction
-            Thread.startVirtualThread(Server::handleLoadUsers);
+            Thread.startVirtualThread(Server::handleSnapshots);         // to take periodic snapshots
+            Thread.startVirtualThread(replication::heartbeat);          // to ping the replicas
+
+            // a log written under a bigger budget is trimmed down before clients come in, the evicted keys go through the writer
+            if (!evictor.makeRoom()) {
+                logger.warning("Loaded " + database.memoryUsage() + " bytes which is over maxmemory, writes will be refused");
+            }
+
+            // a replica follows its master once its own data is loaded, the full sync replaces it anyway
+            if (masterHost != null && masterPort > 0 && !replication.replicaOf(masterHost, masterPort, null, null, replCompression)) {
+                logger.warning("Not replicating " + masterHost + ":" + masterPort + ", --ruser and --rpass are needed to log in to it");
+            }
+
+            if (respPort > 0) {
+                Thread.startVirtualThread(() -> handleRespConnections(respPort));
+            }
 
             // Shutdown hook , called before shutting down jvm
             Runtime.getRuntime().addShutdownHook(new Thread(Server::handleShutDown));
 
-            // parsing replication
+            logger.info("Server is ready to accept connections on port " + port);
 
             while (true) {
-                Socket socket = server.accept(); // accepting new sockets
+                Socket socket = server.accept().socket(); // accepting new sockets
+                socket.setTcpNoDelay(true);     // replies are flushed by hand once the pipelined commands are done
                 String id = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
-                SocketItem socketItem = new SocketItem(id, socket, database, new DataOutputStream(socket.getOutputStream()), new DataInputStream(socket.getInputStream()));
-                Thread.startVirtualThread(new ClientHandler(socketItem, notificationsQueue, keySocketsMap, diskWriteItems, authUsers, replicas)); // starting new thread
+                SocketItem socketItem = SocketItem.buffered(id, socket, database);
+                Thread.startVirtualThread(newClientHandler(socketItem)); // starting new thread
             }
 
         } catch (Exception e) {
@@ -130,18 +260,43 @@ public class Server {
         }
     }
 
+    // for clients and for the link to the master, which runs the replicated commands like a client would
+    private static ClientHandler newClientHandler(SocketItem socketItem) {
+        return new ClientHandler(socketItem, notificationsQueue, subscriptions, diskWriteItems, authUsers, replication, snapshotter, evictor, expirer, changeLog);
+    }
+
+    private static void handleRespConnections(int port) {
+        try (ServerSocket server = new ServerSocket(port)) {
+            logger.info("Accepting resp connections on port " + port);
+            while (true) {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);     // replies are flushed by hand once the pipelined requests are done
+                String id = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+                SocketItem socketItem = SocketItem.buffered(id, socket, database);
+                Thread.startVirtualThread(new RespHandler(socketItem, newClientHandler(socketItem)));
+            }
+        } catch (IOException e) {
+            logger.severe("Resp listener stopped : " + e.getLocalizedMessage());
+        }
+    }
+
     private static void handleNotifications() {
+        Set<SocketItem> subscribers = new HashSet<>();
         try {
             while (true) {
                 // we take an item from queue
-                NotifyItem notifyItem = notificationsQueue.take();
-                logger.info("Got a notification from to process for a key" + notifyItem.getKey());
-
-                for (SocketItem socketItem : notifyItem.getSocketItems()) {
-                    logger.info("Got a key : " + notifyItem.getKey() + " to notify to " + socketItem.getId());
-
-                    DataOutputStream dis = socketItem.getOutputStream();
-                    dis.writeUTF("CHANGED " + notifyItem.getKey() + " " + notifyItem.getValue());
+                Notification notification = notificationsQueue.take();
+                logger.fine("Got a notification from to process for a key" + notification.getKey());
+
+                // a client watching the key and a pattern matching it, or several patterns, still gets it once
+                subscribers.clear();
+                subscriptions.collect(notification.getKey(), subscribers);
+
+                // handing it to each subscriber's own queue never blocks, a slow one only holds up itself
+                for (SocketItem socketItem : subscribers) {
+                    logger.fine("Got a key : " + notification.getKey() + " to notify to " + socketItem.getId());
+                    NotificationQueue queue = socketItem.getNotifications();
+                    if (queue != null) queue.offer(notification);
                 }
             }
         } catch (Exception e) {
@@ -149,65 +304,41 @@ public class Server {
         }
     }
 
-    private static void handlePersistence() {
+    private static void handleLoadDatabase() throws IOException {
         lock.lock();
-        try (BufferedReader reader = new BufferedReader(new FileReader(Constants.APPEND_ONLY_LOG_FILE_PATH.toFile()))) {
-
-            // replaying the append only log file format for setting the data
-            logger.info("Reading the append only log file at : " + Constants.APPEND_ONLY_LOG_FILE_PATH.toAbsolutePath());
-
-            reader.lines().forEach(line -> {
-                String[] parts = line.split("=");
-                if (parts.length == 3) {
-                    // correct entry add it to the database
-                    String operation = parts[0];
-                    String key = parts[1];
-                    String value = parts[2];
-
-                    switch (operation) {
-                        case "S", "SX" -> database.put(key, new SaveItem(key, value, "S"));
-                        case "D" -> database.remove(key);
-                        default -> logger.info("No operation");
-                    }
-                } else {
-                    // wrong entry ignore it and log it
-                    logger.info("Malformed entry in the file : " + line);
-                }
-
-            });
-
-            logger.info("Reading completed saved : " + database.size() + " entries");
-            lock.unlock();
-
+        try {
+            // creates the log directory, a log from older versions becomes its first segment
+            segmentedLog.open();
+            if (changeLog != null) changeLog.open();
+            replication.open();
+
+            // the newest usable snapshot saves replaying the segments it already covers
+            long replayFrom = snapshotter.load();
+            List<SegmentedLog.Segment> segments = segmentedLog.segments();
+            for (SegmentedLog.Segment segment : segments) {
+                if (segment.last() < replayFrom) continue;
+                boolean active = segment.equals(segments.getLast());
+                new LogLoader(segmentedLog.pathOf(segment), database, segment.last()).load(active);
+            }
 
-            while (true) {
-                SaveItem item = diskWriteItems.take();
-                logger.info("Got a item to save with key : " + item.getKey() + " with value " + item.getValue());
-                lock.lock();
-                try (FileOutputStream fos = new FileOutputStream(Constants.APPEND_ONLY_LOG_FILE_PATH.toFile(), true)) {
-                    fos.write(item.toString().getBytes());
-                    fos.flush();
-                    fos.getFD().sync(); // Ensures data is on disk
-                }
-                lock.unlock();
+            // the only walk over the keyspace for expiry, from here on every ttl is scheduled as it is set
+            for (SaveItem item : database.values()) {
+                if (item.getTtl() != null) expirer.schedule(item.getKey(), item.getTtl());
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+        } finally {
+            lock.unlock();
         }
     }
 
-    public static void handleTtlExpiration() {
+    private static void handleCompaction() {
         try {
             while (true) {
-                Thread.sleep(Constants.CACHE_CHECK_INTERVAL); // sleeping because we don't want to check continuously
-
-                // checking continuously for ttl
-                logger.info("Checking ttl");
-                for (SaveItem item : database.values()) {
-                    if (item.hasExpired()) {  // if the item has expired , remove it
-                        logger.info("key : " + item.getKey() + " expired , removing it");
-                        database.remove(item.getKey());
-                    }
+                Thread.sleep(Constants.COMPACTION_INTERVAL);
+
+                try {
+                    segmentCompactor.compact();
+                } catch (IOException e) {
+                    logger.severe("Compaction failed : " + e.getLocalizedMessage());
                 }
             }
         } catch (Exception e) {
@@ -215,49 +346,15 @@ public class Server {
         }
     }
 
-    private static void handleCompaction() {
+    private static void handleSnapshots() {
         try {
             while (true) {
-                Thread.sleep(Constants.COMPACTION_INTERVAL);
-                lock.lock();
-
-                logger.info("Starting compaction");
-
-                Map<String, SaveItem> latestEntries = new LinkedHashMap<>();
-                Set<String> deletedKeys = new HashSet<>();
-
-                try (RandomAccessFile accessFile = new RandomAccessFile(Constants.APPEND_ONLY_LOG_FILE_PATH.toFile(), "r")) {
-                    if (accessFile.length() == 0) continue; // skipping if we have 0 entries
-                    long pointer = accessFile.length() - 1;
-                    StringBuilder lineBuilder = new StringBuilder();
-
-                    while (pointer >= 0) {
-                        accessFile.seek(pointer);
-                        int readByte = accessFile.readByte();
-
-                        if (readByte == '\n') {
-                            if (!lineBuilder.isEmpty()) {
-                                processLine(lineBuilder.reverse().toString(), latestEntries, deletedKeys);
-                                lineBuilder.setLength(0);
-                            }
-                        } else {
-                            lineBuilder.append((char) readByte);
-                        }
-                        pointer--;
-                    }
-
-                    if (!lineBuilder.isEmpty()) {
-                        processLine(lineBuilder.reverse().toString(), latestEntries, deletedKeys);
-                    }
+                Thread.sleep(Constants.SNAPSHOT_INTERVAL);
+                try {
+                    snapshotter.saveIfChanged();
                 } catch (IOException e) {
-                    logger.info(e.getLocalizedMessage());
+                    logger.severe("Periodic snapshot failed : " + e.getLocalizedMessage());
                 }
-
-                // Write the compacted result
-                writeCompactedFile(latestEntries);
-
-                lock.unlock();
-                logger.info("Compaction completed for the file");
             }
         } catch (Exception e) {
             e.printStackTrace();
@@ -291,62 +388,11 @@ public class Server {
     private static void handleShutDown() {
         logger.info("Shutdown initiated. Flushing disk write queue...");
         try {
-            SaveItem item;
-            while ((item = diskWriteItems.poll()) != null) {
-                try (FileOutputStream fos = new FileOutputStream(Constants.APPEND_ONLY_LOG_FILE_PATH.toFile(), true)) {
-                    fos.write(item.toString().getBytes());
-                    fos.flush();
-                    fos.getFD().sync();
-                }
-            }
+            aofWriter.flush();
             logger.info("All pending disk writes flushed.");
         } catch (Exception e) {
             logger.severe("Error during shutdown flush: " + e.getMessage());
         }
         logger.info("vkdb server shutdown complete.");
     }
-
-
-    private static void processLine(String line, Map<String, SaveItem> latestEntries, Set<String> deletedKeys) {
-        line = line.trim();
-
-        if (line.isEmpty()) return;
-
-        String[] parts = line.split("=");
-
-        if (parts.length == 3) {
-            String operation = parts[0];
-            String key = parts[1];
-            String value = parts[2];
-            switch (operation) {
-                case "S", "SX" -> {
-                    if (!latestEntries.containsKey(key) && !deletedKeys.contains(key)) {
-                        latestEntries.put(key, new SaveItem(key, value, operation));
-                    }
-                }
-                case "D" -> deletedKeys.add(key);
-            }
-        } else {
-            logger.info("Malformed entry skipping compaction for this line : " + line);
-        }
-    }
-
-
-    private static void writeCompactedFile(Map<String, SaveItem> latestEntries) {
-        try {
-            Path compactedFilePath = Paths.get("compacted_file_" + System.currentTimeMillis() + ".vdb"); // or overwrite original
-
-            try (BufferedWriter writer = Files.newBufferedWriter(compactedFilePath)) {
-                for (Map.Entry<String, SaveItem> entry : latestEntries.entrySet()) {
-                    writer.write(entry.getValue().toString());
-                }
-            }
-
-            // Atomically replace the original file with the compacted one
-            Files.move(compactedFilePath, Constants.APPEND_ONLY_LOG_FILE_PATH, StandardCopyOption.REPLACE_EXISTING);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-
 }
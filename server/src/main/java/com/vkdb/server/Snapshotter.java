@@ -0,0 +1,231 @@
+package com.vkdb.server;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Logger;
+
+/*
+ * Point in time dumps of the database, each one covers every log segment before the one it names
+ *
+ * header : magic (4) | version (2) | reserved (2) | created at (8) | segment id (8) | offset in that segment (8)
+ * body   : the live keys as append only log records
+ * footer : entry count (8) | magic (4)
+ *
+ * taking a snapshot rolls the log first, so what it covers always ends at a segment boundary. Recovery loads the
+ * snapshot and replays the segments from the named one on, segments before the oldest kept snapshot are dropped
+ */
+public class Snapshotter {
+    private static final Logger logger = Logger.getLogger(Snapshotter.class.getName());
+    private static final int MAGIC = 0x564B534E; // "VKSN"
+    private static final short VERSION = 2;
+    private static final int HEADER_SIZE = 32;
+    private static final int FOOTER_SIZE = 12;
+    private static final String FILE_PREFIX = "snapshot_";
+    private static final String FILE_SUFFIX = ".vdb";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final Store database;
+    private final Lock lock;
+    private final AofWriter aofWriter;
+    private final SegmentedLog log;
+    private final Path directory;
+    private final AtomicBoolean inProgress = new AtomicBoolean(false);
+    private long lastSegmentId = -1;
+
+    public Snapshotter(Store database, Lock lock, AofWriter aofWriter, SegmentedLog log, Path directory) {
+        this.database = database;
+        this.lock = lock;
+        this.aofWriter = aofWriter;
+        this.log = log;
+        this.directory = directory;
+    }
+
+    // starts a snapshot in the background, false when one is already running
+    public boolean trigger() {
+        if (!inProgress.compareAndSet(false, true)) return false;
+
+        Thread.startVirtualThread(() -> {
+            try {
+                save(true);
+            } catch (Exception e) {
+                logger.severe("Snapshot failed : " + e.getLocalizedMessage());
+            } finally {
+                inProgress.set(false);
+            }
+        });
+        return true;
+    }
+
+    // used by the periodic task, skips the work when nothing was written since the last snapshot
+    public void saveIfChanged() throws IOException {
+        if (!inProgress.compareAndSet(false, true)) return;
+        try {
+            save(false);
+        } finally {
+            inProgress.set(false);
+        }
+    }
+
+    private void save(boolean force) throws IOException {
+        long segmentId;
+
+        // the writer appends under the same lock, so rolling here seals everything written so far
+        // every record in the sealed segments is already applied to the database, clients update memory before the log
+        lock.lock();
+        try {
+            SegmentedLog.Segment active = log.active();
+            boolean activeIsEmpty = Files.size(log.pathOf(active)) <= LogRecord.HEADER_SIZE;
+            if (!force && activeIsEmpty && active.first() == lastSegmentId) return;
+
+            segmentId = activeIsEmpty ? active.first() : aofWriter.roll();
+        } finally {
+            lock.unlock();
+        }
+
+        long startTime = System.currentTimeMillis();
+        Path target = directory.resolve(FILE_PREFIX + startTime + FILE_SUFFIX);
+        Path temp = directory.resolve(target.getFileName() + TEMP_SUFFIX);
+        long entries = 0;
+
+        // iterating a concurrent map never blocks writers, anything that changes meanwhile is also in the later segments
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+             OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 20)) {
+            out.write(ByteBuffer.allocate(HEADER_SIZE)
+                    .putInt(MAGIC)
+                    .putShort(VERSION)
+                    .putShort((short) 0)
+                    .putLong(startTime)
+                    .putLong(segmentId)
+                    .putLong(LogRecord.HEADER_SIZE)
+                    .array());
+
+            for (SaveItem item : database.values()) {
+                if (item.hasExpired()) continue;
+                out.write(LogRecord.encode(item));
+                entries++;
+            }
+
+            out.write(ByteBuffer.allocate(FOOTER_SIZE).putLong(entries).putInt(MAGIC).array());
+            out.flush();
+            channel.force(true);
+        }
+
+        Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+        lastSegmentId = segmentId;
+        deleteOldSnapshots();
+
+        // the oldest kept snapshot is the furthest back recovery can start, nothing before it is replayed again
+        log.dropSegmentsBefore(boundaries().stream().min(Long::compare).orElse(0L));
+
+        logger.info("Snapshot " + target.getFileName() + " saved with " + entries + " entries covering the log before segment "
+                + segmentId + " in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    // loads the newest usable snapshot and returns the segment to replay from, 0 when none could be used
+    public long load() throws IOException {
+        for (Path snapshot : listSnapshots()) {
+            try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (size < HEADER_SIZE + FOOTER_SIZE) {
+                    logger.warning("Snapshot " + snapshot.getFileName() + " is too short, skipping it");
+                    continue;
+                }
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                channel.read(header, 0);
+                ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+                channel.read(footer, size - FOOTER_SIZE);
+
+                if (header.getInt(0) != MAGIC || header.getShort(4) != VERSION || footer.getInt(8) != MAGIC) {
+                    logger.warning("Snapshot " + snapshot.getFileName() + " has a bad header or footer, skipping it");
+                    continue;
+                }
+
+                // the log has to continue exactly where the snapshot stops, otherwise records would be missing
+                long segmentId = header.getLong(16);
+                if (log.segments().stream().noneMatch(segment -> segment.first() == segmentId)) {
+                    logger.info("Snapshot " + snapshot.getFileName() + " points at segment " + segmentId + " which is not in the log, skipping it");
+                    continue;
+                }
+
+                long entries = footer.getLong(0);
+                LogLoader.ReplayResult result = new LogLoader(snapshot, database).replay(channel, HEADER_SIZE, size - FOOTER_SIZE);
+                if (!result.isClean() || result.getRecords() != entries || result.getValidOffset() != size - FOOTER_SIZE) {
+                    logger.warning("Snapshot " + snapshot.getFileName() + " is damaged, trying an older one");
+                    database.clear();
+                    continue;
+                }
+
+                lastSegmentId = segmentId;
+                logger.info("Loaded snapshot " + snapshot.getFileName() + " with " + entries + " entries, replaying the log from segment " + segmentId);
+                return segmentId;
+            }
+        }
+
+        return 0;
+    }
+
+    // segments the kept snapshots start from, compaction never merges across one of them
+    public Set<Long> boundaries() throws IOException {
+        Set<Long> boundaries = new HashSet<>();
+        for (Path snapshot : listSnapshots()) {
+            try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                channel.read(header, 0);
+                if (header.getInt(0) == MAGIC && header.getShort(4) == VERSION) {
+                    boundaries.add(header.getLong(16));
+                }
+            }
+        }
+        return boundaries;
+    }
+
+    // newest first, leftovers of snapshots that never finished are removed on the way
+    private List<Path> listSnapshots() throws IOException {
+        List<Path> snapshots = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, FILE_PREFIX + "*")) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(TEMP_SUFFIX) && !inProgress.get()) {
+                    Files.deleteIfExists(path);
+                } else if (name.endsWith(FILE_SUFFIX)) {
+                    snapshots.add(path);
+                }
+            }
+        }
+        snapshots.sort(Comparator.comparingLong(Snapshotter::createdAtOf).reversed());
+        return snapshots;
+    }
+
+    private void deleteOldSnapshots() throws IOException {
+        List<Path> snapshots = listSnapshots();
+        for (int i = Constants.SNAPSHOTS_TO_KEEP; i < snapshots.size(); i++) {
+            Files.deleteIfExists(snapshots.get(i));
+        }
+    }
+
+    private static long createdAtOf(Path path) {
+        String name = path.getFileName().toString();
+        try {
+            return Long.parseLong(name.substring(FILE_PREFIX.length(), name.length() - FILE_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -2,19 +2,28 @@ package com.vkdb.server;
 
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.IOException;
 import java.net.Socket;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class SocketItem {
     private final Socket socket;
     private final DataOutputStream outputStream;
     private final DataInputStream inputStream;
-    private final ConcurrentHashMap<String, SaveItem> database;
+    private final Store database;
     private final String id;
     private final String username;
     private final String password;
+    private volatile Protocol protocol = Protocol.TEXT;
+    private PipelineInputStream pipelineInput;  // set when the streams are buffered
+    private OutputBuffer outputBuffer;
+    private volatile NotificationQueue notifications;   // made by the first NOTIFY
 
-    public SocketItem(String id, Socket socket, ConcurrentHashMap<String, SaveItem> database, DataOutputStream dataOutputStream, DataInputStream dataInputStream, String username, String password) {
+    // text is writeUTF strings, binary is switched to by PROTOCOL BINARY and resp comes in on its own port
+    public enum Protocol {
+        TEXT, BINARY, RESP
+    }
+
+    public SocketItem(String id, Socket socket, Store database, DataOutputStream dataOutputStream, DataInputStream dataInputStream, String username, String password) {
         this.id = id;
         this.socket = socket;
         this.outputStream = dataOutputStream;
@@ -24,7 +33,7 @@ public class SocketItem {
         this.password = password;
     }
 
-    public SocketItem(String id, Socket socket, ConcurrentHashMap<String, SaveItem> database, DataOutputStream dataOutputStream, DataInputStream dataInputStream) {
+    public SocketItem(String id, Socket socket, Store database, DataOutputStream dataOutputStream, DataInputStream dataInputStream) {
         this.id = id;
         this.socket = socket;
         this.outputStream = dataOutputStream;
@@ -34,6 +43,17 @@ public class SocketItem {
         this.password = null;
     }
 
+    // replies wait in the output buffer until the handler flushes, the input tells when no pipelined command is left.
+    // The socket is written by the output buffer's sender, so writing to this client never waits for it
+    public static SocketItem buffered(String id, Socket socket, Store database) throws IOException {
+        PipelineInputStream input = new PipelineInputStream(socket.getInputStream(), Constants.SOCKET_BUFFER_SIZE);
+        OutputBuffer output = OutputBuffer.start(id, socket);
+        SocketItem socketItem = new SocketItem(id, socket, database, new DataOutputStream(output), new DataInputStream(input));
+        socketItem.pipelineInput = input;
+        socketItem.outputBuffer = output;
+        return socketItem;
+    }
+
     public String getUsername() {
         return username;
     }
@@ -50,7 +70,7 @@ public class SocketItem {
         return this.socket;
     }
 
-    public ConcurrentHashMap<String, SaveItem> getDatabase() {
+    public Store getDatabase() {
         return this.database;
     }
 
@@ -61,4 +81,59 @@ public class SocketItem {
     public DataInputStream getInputStream() {
         return inputStream;
     }
+
+    // more commands were already read from the socket, so the replies so far can wait for theirs
+    public boolean hasPendingInput() {
+        return pipelineInput != null && pipelineInput.buffered() > 0;
+    }
+
+    // null for a connection that writes straight to its socket
+    public OutputBuffer getOutputBuffer() {
+        return outputBuffer;
+    }
+
+    // the replies written so far still go out before the socket closes
+    public void close() throws IOException {
+        if (outputBuffer != null) {
+            outputBuffer.close();
+        } else {
+            socket.close();
+        }
+    }
+
+    public Protocol getProtocol() {
+        return protocol;
+    }
+
+    public void setProtocol(Protocol protocol) {
+        this.protocol = protocol;
+    }
+
+    // only the connection's own handler subscribes, so only it ever makes the queue
+    public NotificationQueue subscribe() {
+        if (notifications == null) notifications = new NotificationQueue(this);
+        return notifications;
+    }
+
+    // null until the client subscribed to something
+    public NotificationQueue getNotifications() {
+        return notifications;
+    }
+
+    public void unsubscribe() {
+        if (notifications != null) notifications.stop();
+    }
+
+    // cuts off a client that fell too far behind, without waiting to send it anything
+    public void disconnect() {
+        if (outputBuffer != null) {
+            outputBuffer.disconnect();
+            return;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already gone
+        }
+    }
 }
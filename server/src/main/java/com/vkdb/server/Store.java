@@ -0,0 +1,49 @@
+package com.vkdb.server;
+
+import java.util.List;
+
+// The in memory keyspace, either plain objects on the heap or entries packed in direct memory
+public interface Store {
+
+    // counts as an access for eviction
+    SaveItem get(String key);
+
+    // looks the key up without touching its access time or frequency
+    SaveItem peek(String key);
+
+    void put(String key, SaveItem item);
+
+    // returns the removed item, null when the key was not there
+    SaveItem remove(String key);
+
+    // removes the key only when its ttl has passed, a key written again in the meantime stays
+    SaveItem removeExpired(String key);
+
+    // remembers that the log segment holds a record for the key, compaction uses it to spot superseded records
+    void markWritten(String key, long segmentId);
+
+    // weakly consistent like a concurrent map, never blocks writers for the whole walk
+    Iterable<SaveItem> values();
+
+    // adds the entries of the hash buckets from the cursor on until about count were found and returns the cursor to go
+    // on from, 0 once the last bucket was visited. A key that exists for the whole scan is returned at least once
+    long scan(long cursor, int count, List<SaveItem> into);
+
+    // a few entries picked at random, the eviction policies choose their victims among them
+    List<SaveItem> sample(int count);
+
+    int size();
+
+    // approximate bytes taken by keys, values and their bookkeeping
+    long memoryUsage();
+
+    void clear();
+
+    static Store create(String engine) {
+        return switch (engine.trim().toLowerCase()) {
+            case "heap" -> new HeapStore();
+            case "offheap" -> new OffHeapStore();
+            default -> throw new IllegalArgumentException("Unknown store " + engine + ", use heap or offheap");
+        };
+    }
+}
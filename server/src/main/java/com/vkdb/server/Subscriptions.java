@@ -0,0 +1,81 @@
+package com.vkdb.server;
+
+import java.util.Collection;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Who watches what, the keys clients NOTIFY on and the patterns of PNOTIFY
+ *
+ * every key maps to a concurrent set of its subscribers and every subscriber to the keys it watches, so a client
+ * leaving only touches its own keys instead of walking all of them. A key's set is changed inside compute on the
+ * key, the last subscriber leaving removes the key without racing a new one coming in
+ */
+public class Subscriptions {
+    private final ConcurrentHashMap<String, Set<SocketItem>> byKey = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<SocketItem, Set<String>> bySocket = new ConcurrentHashMap<>();
+    private final PatternIndex patterns = new PatternIndex();
+
+    public void subscribe(String key, SocketItem socketItem) {
+        byKey.compute(key, (k, subscribers) -> {
+            if (subscribers == null) subscribers = ConcurrentHashMap.newKeySet();
+            subscribers.add(socketItem);
+            return subscribers;
+        });
+        bySocket.computeIfAbsent(socketItem, s -> ConcurrentHashMap.newKeySet()).add(key);
+    }
+
+    // false when the client wasn't watching the key
+    public boolean unsubscribe(String key, SocketItem socketItem) {
+        Set<String> keys = bySocket.get(socketItem);
+        if (keys == null || !keys.remove(key)) return false;
+        remove(key, socketItem);
+        return true;
+    }
+
+    public boolean subscribePattern(String pattern, SocketItem socketItem) {
+        return patterns.subscribe(pattern, socketItem);
+    }
+
+    public boolean unsubscribePattern(String pattern, SocketItem socketItem) {
+        return patterns.unsubscribe(pattern, socketItem);
+    }
+
+    // everything a client watched, once it is gone
+    public void unsubscribeAll(SocketItem socketItem) {
+        Set<String> keys = bySocket.remove(socketItem);
+        if (keys != null) {
+            for (String key : keys) {
+                remove(key, socketItem);
+            }
+        }
+        patterns.unsubscribeAll(socketItem);
+    }
+
+    // checked for every change to a key, a change nobody waits for isn't queued at all
+    public boolean isWatched(String key) {
+        return byKey.containsKey(key) || patterns.matchesAny(key);
+    }
+
+    // adds the clients watching the key or a pattern it matches
+    public void collect(String key, Collection<SocketItem> socketItems) {
+        Set<SocketItem> subscribers = byKey.get(key);
+        if (subscribers != null) socketItems.addAll(subscribers);
+        patterns.collect(key, socketItems);
+    }
+
+    public int keys() {
+        return byKey.size();
+    }
+
+    public int patterns() {
+        return patterns.size();
+    }
+
+    private void remove(String key, SocketItem socketItem) {
+        byKey.computeIfPresent(key, (k, subscribers) -> {
+            subscribers.remove(socketItem);
+            return subscribers.isEmpty() ? null : subscribers;
+        });
+    }
+}
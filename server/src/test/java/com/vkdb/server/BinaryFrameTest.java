@@ -0,0 +1,54 @@
+package com.vkdb.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BinaryFrameTest {
+
+    private static BinaryFrame.Request read(byte[] bytes) throws IOException {
+        return BinaryFrame.read(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    // a request with one string argument whose length field says something else than the bytes that follow
+    private static byte[] withLength(int length) {
+        byte[] text = "GET".getBytes();
+        ByteBuffer payload = ByteBuffer.allocate(2 + 1 + 4 + text.length);
+        payload.putShort((short) 1).put((byte) 's').putInt(length).put(text);
+        return ByteBuffer.allocate(9 + payload.capacity())
+                .putInt(payload.capacity())
+                .putInt(7)
+                .put((byte) 0)
+                .put(payload.array())
+                .array();
+    }
+
+    @Test
+    public void requestsComeBackAsSent() throws IOException {
+        BinaryFrame.Request request = read(BinaryFrame.encodeRequest(3, "SET", "kéy", "x".repeat(Constants.MAX_FRAME_SIZE + 5)));
+        assertEquals(3, request.id());
+        assertEquals(3, request.args().length);
+        assertEquals("kéy", request.args()[1]);
+        assertEquals(Constants.MAX_FRAME_SIZE + 5, request.args()[2].length());
+    }
+
+    @Test
+    public void argumentLengthsAreChecked() throws IOException {
+        assertEquals("GET", read(withLength(3)).args()[0]);
+        assertThrows(ProtocolException.class, () -> read(withLength(-1)));
+        assertThrows(ProtocolException.class, () -> read(withLength(4)));
+        assertThrows(ProtocolException.class, () -> read(withLength(Integer.MAX_VALUE)));
+    }
+
+    @Test
+    public void statusComesFromTheReply() {
+        assertEquals(BinaryFrame.STATUS_OK, BinaryFrame.statusOf(Reply.ok("ERROR is just a value here")));
+        assertEquals(BinaryFrame.STATUS_ERROR, BinaryFrame.statusOf(Reply.error("ERROR USAGE GET <KEY>")));
+    }
+}
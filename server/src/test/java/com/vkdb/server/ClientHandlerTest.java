@@ -0,0 +1,41 @@
+package com.vkdb.server;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ClientHandlerTest {
+
+    // what a CHANGES consumer does with a key or value, the way the readme describes it
+    private static String unescape(String text) {
+        StringBuilder plain = new StringBuilder();
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c != '\\') {
+                plain.append(c);
+                continue;
+            }
+            switch (text.charAt(++i)) {
+                case 'n' -> plain.append('\n');
+                case 'r' -> plain.append('\r');
+                case 's' -> plain.append(' ');
+                default -> plain.append(text.charAt(i));
+            }
+        }
+        return plain.toString();
+    }
+
+    @Test
+    public void changesStayOnTheirLine() {
+        String[] texts = {"plain", "", "two\nlines", "crlf\r\n", "back\\slash", "\\n", "a key with spaces", "\\\n\\"};
+        for (String text : texts) {
+            for (boolean key : new boolean[]{true, false}) {
+                String escaped = ClientHandler.escapeChange(text, key);
+                assertFalse(escaped.contains("\n") || escaped.contains("\r"), escaped);
+                if (key) assertFalse(escaped.contains(" "), escaped);
+                assertEquals(text, unescape(escaped));
+            }
+        }
+        assertEquals("Jane Smith", ClientHandler.escapeChange("Jane Smith", false));
+    }
+}
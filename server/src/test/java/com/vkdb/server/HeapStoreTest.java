@@ -0,0 +1,102 @@
+package com.vkdb.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// scan leans on how ConcurrentHashMap splits its spliterator: halving the bin range and splitting down to single bins
+// of a power of two table. These pin that down, a jdk splitting differently fails here instead of silently in SCAN
+public class HeapStoreTest {
+
+    private static HeapStore store(int keys) {
+        HeapStore store = new HeapStore();
+        for (int i = 0; i < keys; i++) store.put("key" + i, new SaveItem("key" + i, "v", "S"));
+        return store;
+    }
+
+    // the keys of a whole scan with how often each came
+    private static Map<String, Integer> scanAll(HeapStore store, int count) {
+        Map<String, Integer> seen = new HashMap<>();
+        List<SaveItem> page = new ArrayList<>();
+        long cursor = 0;
+        do {
+            page.clear();
+            long next = store.scan(cursor, count, page);
+            assertTrue(next == 0 || next > cursor, "cursor went from " + cursor + " to " + next);
+            cursor = next;
+            page.forEach(item -> seen.merge(item.getKey(), 1, Integer::sum));
+        } while (cursor != 0);
+        return seen;
+    }
+
+    @Test
+    public void scanReturnsEveryKeyOnceWithoutChanges() {
+        for (int keys : new int[]{0, 1, 7, 100, 5_000, 70_000}) {
+            HeapStore store = store(keys);
+            for (int count : new int[]{1, 10, 1000}) {
+                Map<String, Integer> seen = scanAll(store, count);
+                assertEquals(keys, seen.size(), keys + " keys, count " + count);
+                seen.forEach((key, times) -> assertEquals(1, times, key + " came " + times + " times"));
+            }
+        }
+    }
+
+    @Test
+    public void scanMissesNothingAcrossResizes() {
+        HeapStore store = store(1_000);
+        Set<String> seen = new HashSet<>();
+        List<SaveItem> page = new ArrayList<>();
+        long cursor = 0;
+        int added = 0;
+        do {
+            page.clear();
+            cursor = store.scan(cursor, 10, page);
+            page.forEach(item -> seen.add(item.getKey()));
+            // the table grows several times over while the scan is under way
+            for (int i = 0; i < 500 && added < 30_000; i++) {
+                String key = "new" + added++;
+                store.put(key, new SaveItem(key, "v", "S"));
+            }
+        } while (cursor != 0);
+
+        assertTrue(store.size() > 16 * 1_000, "the table never grew much");
+        for (int i = 0; i < 1_000; i++) {
+            assertTrue(seen.contains("key" + i), "key" + i + " was there all along but the scan missed it");
+        }
+    }
+
+    @Test
+    public void scanMissesNothingWhileOtherKeysGo() {
+        HeapStore store = store(10_000);
+        Set<String> seen = new HashSet<>();
+        List<SaveItem> page = new ArrayList<>();
+        long cursor = 0;
+        int removed = 0;
+        do {
+            page.clear();
+            cursor = store.scan(cursor, 50, page);
+            page.forEach(item -> seen.add(item.getKey()));
+            for (int i = 0; i < 20 && removed < 5_000; i++) store.remove("key" + (2 * removed++ + 1));     // odd keys only
+        } while (cursor != 0);
+
+        for (int i = 0; i < 10_000; i += 2) {
+            assertTrue(seen.contains("key" + i), "key" + i + " was there all along but the scan missed it");
+        }
+    }
+
+    @Test
+    public void cursorPastTheTableEndsTheScan() {
+        HeapStore store = store(100);
+        List<SaveItem> page = new ArrayList<>();
+        assertEquals(0, store.scan(Long.MAX_VALUE, 10, page));
+        assertEquals(0, store.scan(-1, 10, page));
+        assertTrue(page.isEmpty());
+    }
+}
@@ -0,0 +1,258 @@
+package com.vkdb.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LogRecordTest {
+
+    private static byte[] log(SaveItem... items) {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        for (SaveItem item : items) log.writeBytes(LogRecord.encode(item));
+        return log.toByteArray();
+    }
+
+    private static List<SaveItem> readAll(LogReader reader) {
+        List<SaveItem> items = new ArrayList<>();
+        SaveItem item;
+        while ((item = reader.next()) != null) items.add(item);
+        return items;
+    }
+
+    private static void assertItem(String operation, String key, String value, SaveItem item) {
+        assertEquals(operation, item.getOperation());
+        assertEquals(key, item.getKey());
+        assertEquals(value, item.getValue());
+    }
+
+    @Test
+    public void headerRoundTrips() {
+        ByteBuffer header = ByteBuffer.wrap(LogRecord.header(1234L));
+        assertTrue(LogRecord.hasHeader(header));
+        assertEquals(1234L, LogRecord.createdAt(header));
+        assertFalse(LogRecord.hasHeader(ByteBuffer.wrap(new byte[LogRecord.HEADER_SIZE])));
+    }
+
+    @Test
+    public void recordsRoundTrip() {
+        long expiresAt = System.currentTimeMillis() + 60_000;
+        byte[] log = log(
+                new SaveItem("user1", "Jane", "S"),
+                SaveItem.withExpiry("session", "ünïcode välue", "SX", expiresAt),
+                new SaveItem("empty", "", "S"),
+                new SaveItem("user1", "Jane", "D"));
+
+        LogReader reader = new LogReader(ByteBuffer.wrap(log), 100);
+        List<SaveItem> items = readAll(reader);
+        assertEquals(4, items.size());
+        assertItem("S", "user1", "Jane", items.get(0));
+        assertNull(items.get(0).getTtl());
+        assertItem("SX", "session", "ünïcode välue", items.get(1));
+        assertEquals(expiresAt, items.get(1).getTtl());
+        assertItem("S", "empty", "", items.get(2));
+        assertItem("D", "user1", "", items.get(3));     // a delete doesn't keep the value
+
+        assertFalse(reader.isTorn());
+        assertFalse(reader.isCorrupt());
+        assertEquals(100 + log.length, reader.getValidOffset());
+        assertEquals(-1, reader.getSequence());
+    }
+
+    @Test
+    public void recordCutAnywhereIsTorn() {
+        byte[] first = LogRecord.encode(new SaveItem("a", "1", "S"));
+        byte[] log = log(new SaveItem("a", "1", "S"), new SaveItem("b", "22", "S"));
+        for (int cut = first.length + 1; cut < log.length; cut++) {
+            LogReader reader = new LogReader(ByteBuffer.wrap(Arrays.copyOf(log, cut)), 0);
+            assertEquals(1, readAll(reader).size(), "cut at " + cut);
+            assertTrue(reader.isTorn(), "cut at " + cut);
+            assertFalse(reader.isCorrupt(), "cut at " + cut);
+            assertEquals(first.length, reader.getValidOffset());
+        }
+    }
+
+    @Test
+    public void changedByteAnywhereIsCorrupt() {
+        byte[] first = LogRecord.encode(new SaveItem("a", "1", "S"));
+        byte[] log = log(new SaveItem("a", "1", "S"), new SaveItem("b", "22", "S"), new SaveItem("c", "3", "S"));
+        int secondEnd = first.length + LogRecord.encode(new SaveItem("b", "22", "S")).length;
+        // the length field is left alone, a changed length is a torn record when it points past the end
+        for (int at = first.length + 4; at < secondEnd; at++) {
+            byte[] damaged = log.clone();
+            damaged[at] ^= 0x5a;
+            LogReader reader = new LogReader(ByteBuffer.wrap(damaged), 0);
+            assertEquals(1, readAll(reader).size(), "byte " + at);
+            assertTrue(reader.isCorrupt(), "byte " + at);
+            assertFalse(reader.isTorn(), "byte " + at);
+            assertEquals(first.length, reader.getValidOffset());
+        }
+    }
+
+    @Test
+    public void lengthTooSmallForARecordIsCorrupt() {
+        LogReader reader = new LogReader(ByteBuffer.wrap(new byte[32]), 0);
+        assertNull(reader.next());
+        assertTrue(reader.isCorrupt());
+        assertEquals(0, reader.getValidOffset());
+    }
+
+    private static FileChannel file(Path directory, byte[] bytes) throws IOException {
+        Path path = Files.write(directory.resolve("log.vdb"), bytes);
+        return FileChannel.open(path, StandardOpenOption.READ);
+    }
+
+    @Test
+    public void onlyABadLastRecordIsATail(@TempDir Path directory) throws IOException {
+        byte[] good = log(new SaveItem("a", "1", "S"));
+        byte[] second = LogRecord.encode(new SaveItem("b", "22", "S"));
+        byte[] log = log(new SaveItem("a", "1", "S"), new SaveItem("b", "22", "S"), new SaveItem("c", "3", "S"));
+
+        byte[] lastDamaged = Arrays.copyOf(log, good.length + second.length);
+        lastDamaged[lastDamaged.length - 2] ^= 1;
+        try (FileChannel channel = file(directory, lastDamaged)) {
+            assertTrue(LogReader.isTail(channel, good.length, channel.size()));
+        }
+
+        byte[] zeros = Arrays.copyOf(good, good.length + 4096);   // grown but never written
+        try (FileChannel channel = file(directory, zeros)) {
+            assertTrue(LogReader.isTail(channel, good.length, channel.size()));
+        }
+
+        byte[] middleDamaged = log.clone();
+        middleDamaged[good.length + 10] ^= 1;
+        try (FileChannel channel = file(directory, middleDamaged)) {
+            assertFalse(LogReader.isTail(channel, good.length, channel.size()));
+        }
+    }
+
+    @Test
+    public void damagedLengthWithRecordsAfterItIsNotATail(@TempDir Path directory) throws IOException {
+        byte[] good = log(new SaveItem("a", "1", "S"));
+        byte[] log = log(new SaveItem("a", "1", "S"), new SaveItem("b", "22", "S"), new SaveItem("c", "3", "S"),
+                new SaveItem("d", "4", "S"));
+
+        // the length of b now points past the end, the reader can't tell it from a record cut short
+        for (int bit : new int[]{0x01, 0x10, 0x40}) {
+            byte[] damaged = log.clone();
+            damaged[good.length + 1] ^= (byte) bit;
+            LogReader reader = new LogReader(ByteBuffer.wrap(damaged), 0);
+            assertEquals(1, readAll(reader).size());
+            try (FileChannel channel = file(directory, damaged)) {
+                assertFalse(LogReader.isTail(channel, reader.getValidOffset(), channel.size()), "bit " + bit);
+            }
+        }
+    }
+
+    @Test
+    public void batchOrChangeCutShortIsATail(@TempDir Path directory) throws IOException {
+        BatchItem batch = new BatchItem(List.of(new SaveItem("a", "1", "S"), new SaveItem("b", "2", "S"),
+                new SaveItem("c", "3", "S")));
+        byte[] first = LogRecord.encode(new SaveItem("before", "x", "S"));
+        byte[] batchLog = log(new SaveItem("before", "x", "S"), batch);
+        byte[] change = LogRecord.encodeChange(5, batch);
+        ByteArrayOutputStream changeLog = new ByteArrayOutputStream();
+        changeLog.writeBytes(first);
+        changeLog.writeBytes(change);
+
+        // the whole records the cut leaves inside are part of the unfinished write, not data after it
+        for (byte[] log : List.of(batchLog, changeLog.toByteArray())) {
+            for (int cut = first.length + 1; cut < log.length; cut++) {
+                try (FileChannel channel = file(directory, Arrays.copyOf(log, cut))) {
+                    assertTrue(LogReader.isTail(channel, first.length, channel.size()), "cut at " + cut);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void batchRoundTripsAsItsItems() {
+        BatchItem batch = new BatchItem(List.of(new SaveItem("a", "1", "S"), new SaveItem("b", "2", "S"), new SaveItem("c", "", "D")));
+        byte[] log = log(new SaveItem("before", "x", "S"), batch, new SaveItem("after", "y", "S"));
+
+        LogReader reader = new LogReader(ByteBuffer.wrap(log), 0);
+        List<SaveItem> items = readAll(reader);
+        assertEquals(5, items.size());
+        assertItem("S", "before", "x", items.get(0));
+        assertItem("S", "a", "1", items.get(1));
+        assertItem("S", "b", "2", items.get(2));
+        assertItem("D", "c", "", items.get(3));
+        assertItem("S", "after", "y", items.get(4));
+        assertFalse(reader.isTorn() || reader.isCorrupt());
+        assertEquals(log.length, reader.getValidOffset());
+    }
+
+    @Test
+    public void damagedBatchIsDroppedWhole() {
+        byte[] first = LogRecord.encode(new SaveItem("before", "x", "S"));
+        BatchItem batch = new BatchItem(List.of(new SaveItem("a", "1", "S"), new SaveItem("b", "2", "S")));
+        byte[] log = log(new SaveItem("before", "x", "S"), batch);
+
+        // none of the batch comes out, wherever it was cut
+        for (int cut = first.length + 1; cut < log.length; cut++) {
+            LogReader reader = new LogReader(ByteBuffer.wrap(Arrays.copyOf(log, cut)), 0);
+            assertEquals(1, readAll(reader).size(), "cut at " + cut);
+            assertTrue(reader.isTorn(), "cut at " + cut);
+            assertEquals(first.length, reader.getValidOffset());
+        }
+
+        byte[] damaged = log.clone();
+        damaged[log.length - 8] ^= 1;   // in the value of the batch's last record
+        LogReader reader = new LogReader(ByteBuffer.wrap(damaged), 0);
+        assertEquals(1, readAll(reader).size());
+        assertTrue(reader.isCorrupt());
+        assertEquals(first.length, reader.getValidOffset());
+    }
+
+    @Test
+    public void changesRoundTripWithTheirSequence() {
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        log.writeBytes(LogRecord.encodeChange(7, new SaveItem("a", "1", "S")));
+        log.writeBytes(LogRecord.encodeChange(8, new BatchItem(List.of(new SaveItem("b", "2", "S"), new SaveItem("a", "", "D")))));
+        log.writeBytes(LogRecord.encodeChange(9, new SaveItem("c", "3", "S")));
+
+        LogReader reader = new LogReader(ByteBuffer.wrap(log.toByteArray()), LogRecord.HEADER_SIZE);
+        long[] sequences = {7, 8, 8, 9};
+        String[] keys = {"a", "b", "a", "c"};
+        for (int i = 0; i < sequences.length; i++) {
+            SaveItem item = reader.next();
+            assertNotNull(item);
+            assertEquals(keys[i], item.getKey());
+            assertEquals(sequences[i], reader.getSequence());
+        }
+        assertNull(reader.next());
+        assertFalse(reader.isTorn() || reader.isCorrupt());
+        assertEquals(LogRecord.HEADER_SIZE + log.size(), reader.getValidOffset());
+    }
+
+    @Test
+    public void damagedChangeStopsTheReadBeforeIt() {
+        byte[] first = LogRecord.encodeChange(1, new SaveItem("a", "1", "S"));
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+        log.writeBytes(first);
+        log.writeBytes(LogRecord.encodeChange(2, new BatchItem(List.of(new SaveItem("b", "2", "S"), new SaveItem("c", "3", "S")))));
+        byte[] bytes = log.toByteArray();
+
+        LogReader torn = new LogReader(ByteBuffer.wrap(Arrays.copyOf(bytes, bytes.length - 3)), 0);
+        assertEquals(1, readAll(torn).size());
+        assertTrue(torn.isTorn());
+        assertEquals(first.length, torn.getValidOffset());
+
+        bytes[first.length + 30] ^= 1;
+        LogReader corrupt = new LogReader(ByteBuffer.wrap(bytes), 0);
+        assertEquals(1, readAll(corrupt).size());
+        assertTrue(corrupt.isCorrupt());
+        assertEquals(first.length, corrupt.getValidOffset());
+    }
+}
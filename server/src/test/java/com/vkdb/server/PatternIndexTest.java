@@ -0,0 +1,85 @@
+package com.vkdb.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+// PNOTIFY has to match exactly the keys SCAN MATCH would, the trie and its matcher are checked against SCAN's regex
+public class PatternIndexTest {
+    private static final String[] GLOBS = {"*", "a*", "*b", "a?c", "a*b*c", "\\*x", "a\\", "", "?", "**a", "a*?", "x\\?y*",
+            "session:*", "session:*:id", "*:*", "a\\*", "\\\\*", "?*?", "*a*a*"};
+    private static final String[] KEYS = {"", "a", "ab", "abc", "axc", "aXbYc", "*x", "a\\", "b", "aaa", "x?yz", "xzy",
+            "session:", "session:1", "session:1:id", "session:1:idx", ":", "a*", "\\x", "banana"};
+
+    private static SocketItem client(String id) {
+        return new SocketItem(id, null, null, null, null);
+    }
+
+    private static void assertSameAsScan(String glob, String key) {
+        boolean expected = ClientHandler.globToPattern(glob).matcher(key).matches();
+        PatternIndex index = new PatternIndex();
+        SocketItem client = client("c");
+        index.subscribe(glob, client);
+        assertEquals(expected, index.matchesAny(key), "glob '" + glob + "' key '" + key + "'");
+
+        List<SocketItem> collected = new ArrayList<>();
+        index.collect(key, collected);
+        assertEquals(expected ? List.of(client) : List.of(), collected, "glob '" + glob + "' key '" + key + "'");
+    }
+
+    @Test
+    public void matchesLikeScanOnTheGrid() {
+        for (String glob : GLOBS) {
+            for (String key : KEYS) {
+                assertSameAsScan(glob, key);
+            }
+        }
+    }
+
+    @Test
+    public void matchesLikeScanOnRandomGlobs() {
+        Random random = new Random(7);
+        String globChars = "ab*?\\";
+        String keyChars = "ab*?\\";
+        for (int i = 0; i < 20_000; i++) {
+            StringBuilder glob = new StringBuilder();
+            for (int n = random.nextInt(7); n > 0; n--) glob.append(globChars.charAt(random.nextInt(globChars.length())));
+            StringBuilder key = new StringBuilder();
+            for (int n = random.nextInt(7); n > 0; n--) key.append(keyChars.charAt(random.nextInt(keyChars.length())));
+            assertSameAsScan(glob.toString(), key.toString());
+        }
+    }
+
+    @Test
+    public void everyPatternInTheTrieIsMatchedOnItsOwn() {
+        PatternIndex index = new PatternIndex();
+        List<SocketItem> clients = new ArrayList<>();
+        for (String glob : GLOBS) {
+            SocketItem client = client(glob);
+            clients.add(client);
+            assertTrue(index.subscribe(glob, client));
+        }
+        assertFalse(index.subscribe(GLOBS[0], clients.getFirst()));
+        assertEquals(GLOBS.length, index.size());
+
+        for (String key : KEYS) {
+            List<SocketItem> expected = new ArrayList<>();
+            for (int i = 0; i < GLOBS.length; i++) {
+                if (ClientHandler.globToPattern(GLOBS[i]).matcher(key).matches()) expected.add(clients.get(i));
+            }
+            List<SocketItem> collected = new ArrayList<>();
+            index.collect(key, collected);
+            assertEquals(expected.size(), collected.size(), "key '" + key + "'");
+            assertTrue(collected.containsAll(expected), "key '" + key + "'");
+        }
+
+        // leaving takes the patterns out again
+        clients.forEach(index::unsubscribeAll);
+        assertEquals(0, index.size());
+        assertFalse(index.matchesAny("abc"));
+    }
+}
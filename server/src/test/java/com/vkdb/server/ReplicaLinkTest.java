@@ -0,0 +1,70 @@
+package com.vkdb.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReplicaLinkTest {
+
+    // what the master sends, a value too large for one frame included
+    private static List<byte[]> stream() {
+        List<byte[]> frames = new ArrayList<>();
+        frames.add(BinaryFrame.encodeRequest(0, "SET", "a", "1"));
+        frames.add(BinaryFrame.encodeRequest(0, "PING"));
+        frames.add(BinaryFrame.encodeRequest(0, "MSET", "b", "2", "c", "héllo"));
+        frames.add(BinaryFrame.encodeRequest(0, "REPLCONF", "GETACK"));
+        frames.add(BinaryFrame.encodeRequest(0, "SET", "big", "x".repeat(Constants.MAX_FRAME_SIZE * 2 + 17)));
+        frames.add(BinaryFrame.encodeRequest(0, "DEL", "a"));
+        return frames;
+    }
+
+    // the offset after every command has to be exactly where the master's stream was after it
+    private static void assertOffsets(List<byte[]> frames, InputStream wire) throws IOException {
+        ReplicaLink.CountingInputStream counting = new ReplicaLink.CountingInputStream(wire);
+        DataInputStream in = new DataInputStream(counting);
+        long expected = 0;
+        for (byte[] frame : frames) {
+            BinaryFrame.read(in);
+            expected += frame.length;
+            assertEquals(expected, counting.getCount());
+        }
+    }
+
+    @Test
+    public void countsTheBytesOfEveryCommand() throws IOException {
+        List<byte[]> frames = stream();
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        frames.forEach(wire::writeBytes);
+
+        // buffered underneath the way the link reads the socket, read ahead must not count
+        assertOffsets(frames, new BufferedInputStream(new ByteArrayInputStream(wire.toByteArray()), 64));
+    }
+
+    @Test
+    public void countsTheStreamAsItWasBeforeDeflating() throws IOException {
+        List<byte[]> frames = stream();
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        DeflaterOutputStream deflating = new DeflaterOutputStream(wire, new Deflater(Deflater.BEST_SPEED), 512, true);
+        for (byte[] frame : frames) {
+            deflating.write(frame);
+            deflating.flush();  // the sender flushes whatever piled up at once
+        }
+
+        InputStream input = new BufferedInputStream(new ByteArrayInputStream(wire.toByteArray()), 64);
+        assertOffsets(frames, new InflaterInputStream(input, new Inflater(), 128));
+        assertTrue(wire.size() < frames.stream().mapToInt(frame -> frame.length).sum());
+    }
+}
@@ -0,0 +1,96 @@
+package com.vkdb.server;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ReplicationBacklogTest {
+
+    private static byte[] bytes(int from, int count) {
+        byte[] bytes = new byte[count];
+        for (int i = 0; i < count; i++) bytes[i] = (byte) (from + i);
+        return bytes;
+    }
+
+    private static byte[] from(ReplicationBacklog backlog, long offset) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        backlog.writeFrom(offset, out);
+        return out.toByteArray();
+    }
+
+    @Test
+    public void emptyBacklogOnlyContainsItsStart() throws IOException {
+        ReplicationBacklog backlog = new ReplicationBacklog(8);
+        assertEquals(0, backlog.start());
+        assertEquals(0, backlog.end());
+        assertTrue(backlog.contains(0));
+        assertFalse(backlog.contains(1));
+        assertEquals(0, from(backlog, 0).length);
+    }
+
+    @Test
+    public void keepsEverythingUntilTheRingIsFull() throws IOException {
+        ReplicationBacklog backlog = new ReplicationBacklog(8);
+        backlog.append(bytes(0, 3));
+        backlog.append(bytes(3, 5));
+        assertEquals(0, backlog.start());
+        assertEquals(8, backlog.end());
+        assertTrue(backlog.contains(0));
+        assertTrue(backlog.contains(8));
+        assertFalse(backlog.contains(9));
+        assertArrayEquals(bytes(0, 8), from(backlog, 0));
+        assertArrayEquals(bytes(5, 3), from(backlog, 5));
+    }
+
+    @Test
+    public void wrapsAroundAndForgetsTheOldestBytes() throws IOException {
+        ReplicationBacklog backlog = new ReplicationBacklog(8);
+        backlog.append(bytes(0, 5));
+        backlog.append(bytes(5, 6));    // wraps, the ring now holds offsets 3 to 11
+        assertEquals(3, backlog.start());
+        assertEquals(11, backlog.end());
+        assertFalse(backlog.contains(2));
+        assertTrue(backlog.contains(3));
+        assertTrue(backlog.contains(11));
+        assertFalse(backlog.contains(12));
+        assertArrayEquals(bytes(3, 8), from(backlog, 3));
+        assertArrayEquals(bytes(7, 4), from(backlog, 7));
+        assertEquals(0, from(backlog, 11).length);
+    }
+
+    @Test
+    public void writeLargerThanTheRingKeepsItsEnd() throws IOException {
+        ReplicationBacklog backlog = new ReplicationBacklog(4);
+        backlog.append(bytes(0, 2));
+        backlog.append(bytes(2, 10));
+        assertEquals(12, backlog.end());
+        assertEquals(8, backlog.start());
+        assertFalse(backlog.contains(7));
+        assertArrayEquals(bytes(8, 4), from(backlog, 8));
+    }
+
+    @Test
+    public void matchesTheWholeStreamAfterRandomAppends() throws IOException {
+        Random random = new Random(42);
+        ReplicationBacklog backlog = new ReplicationBacklog(100);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int i = 0; i < 1000; i++) {
+            byte[] write = new byte[random.nextInt(150)];
+            random.nextBytes(write);
+            backlog.append(write);
+            stream.writeBytes(write);
+
+            byte[] all = stream.toByteArray();
+            assertEquals(all.length, backlog.end());
+            assertEquals(Math.max(0, all.length - 100), backlog.start());
+            long offset = backlog.start() + random.nextInt((int) (backlog.end() - backlog.start()) + 1);
+            assertTrue(backlog.contains(offset));
+            assertArrayEquals(Arrays.copyOfRange(all, (int) offset, all.length), from(backlog, offset));
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.vkdb.server;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SegmentCompactorTest {
+
+    @TempDir
+    Path directory;
+
+    // compaction flushes the writer while it runs, the log has to end up holding exactly what the store holds
+    @Test
+    public void compactionWhileWriting() throws Exception {
+        SegmentedLog log = new SegmentedLog(directory);
+        log.open();
+        Store database = new HeapStore();
+        BlockingQueue<SaveItem> diskWriteItems = new LinkedBlockingQueue<>(Constants.DISK_WRITE_QUEUE_CAPACITY);
+        ReentrantLock lock = new ReentrantLock();
+        AofWriter aofWriter = new AofWriter(log, database, diskWriteItems, lock, AofWriter.FsyncPolicy.NO, null);
+        Thread writerThread = Thread.startVirtualThread(aofWriter);
+        SegmentCompactor compactor = new SegmentCompactor(database, log, aofWriter,
+                new Snapshotter(database, lock, aofWriter, log, directory));
+
+        // each client its own keys, like a client's own writes they reach the store and the queue in the same order
+        List<Thread> clients = new ArrayList<>();
+        for (int client = 0; client < 4; client++) {
+            int id = client;
+            clients.add(Thread.startVirtualThread(() -> {
+                try {
+                    for (int i = 0; i < 30_000; i++) {
+                        String key = "key" + id + ":" + (i % 300);
+                        if (i % 7 == 0) {
+                            SaveItem removed = database.remove(key);
+                            if (removed != null) diskWriteItems.put(new SaveItem(key, removed.getValue(), "D"));
+                        } else {
+                            SaveItem item = new SaveItem(key, "value" + i, "S");
+                            database.put(key, item);
+                            diskWriteItems.put(item);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+
+        int compactions = 0;
+        while (clients.stream().anyMatch(Thread::isAlive) || compactions < 10) {
+            lock.lock();
+            try {
+                aofWriter.roll();
+            } finally {
+                lock.unlock();
+            }
+            compactor.compact();
+            compactions++;
+        }
+        for (Thread client : clients) client.join();
+        aofWriter.flush();
+        compactor.compact();
+        assertTrue(writerThread.isAlive());
+
+        Store loaded = new HeapStore();
+        List<SegmentedLog.Segment> segments = log.segments();
+        for (SegmentedLog.Segment segment : segments) {
+            new LogLoader(log.pathOf(segment), loaded, segment.last()).load(segment.equals(segments.getLast()));
+        }
+        assertEquals(database.size(), loaded.size());
+        for (SaveItem item : database.values()) {
+            SaveItem copy = loaded.peek(item.getKey());
+            assertNotNull(copy, item.getKey());
+            assertEquals(item.getValue(), copy.getValue(), item.getKey());
+        }
+        writerThread.interrupt();
+    }
+}
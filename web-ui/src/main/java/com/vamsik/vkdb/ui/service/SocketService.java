@@ -1,5 +1,8 @@
 package com.vamsik.vkdb.ui.service;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.DataInputStream;
@@ -9,9 +12,21 @@ import java.net.Socket;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Service
 public class SocketService {
+    private static final Logger logger = LoggerFactory.getLogger(SocketService.class);
+
+    // host:port of the master's replicas, the listings are read from them in turn and the writes go to the master
+    @Value("${vkdb.replicas:}")
+    private List<String> replicas;
+
+    // a replica further behind its master than this refuses the read and it goes to the master, 0 takes any replica
+    @Value("${vkdb.replica-max-lag:0}")
+    private long replicaMaxLag;
+
+    private final AtomicInteger nextReplica = new AtomicInteger();
 
     private static class SocketConnection {
         private final Socket socket;
@@ -56,16 +71,40 @@ public class SocketService {
     }
 
     public List<SocketEntry> getAllEntries(String host, int port) throws IOException {
+        if (!replicas.isEmpty()) {
+            String replica = replicas.get(Math.floorMod(nextReplica.getAndIncrement(), replicas.size()));
+            int colon = replica.lastIndexOf(':');
+            try {
+                List<SocketEntry> entries = readAllEntries(replica.substring(0, colon).trim(), Integer.parseInt(replica.substring(colon + 1).trim()), true);
+                if (entries != null) return entries;
+                logger.info("Replica {} is behind its master, reading from the master", replica);
+            } catch (IOException e) {
+                logger.warn("Replica {} not reachable, reading from the master : {}", replica, e.getMessage());
+            }
+        }
+        return readAllEntries(host, port, false);
+    }
+
+    // null when a replica refused the read for being too far behind its master
+    private List<SocketEntry> readAllEntries(String host, int port, boolean replica) throws IOException {
         SocketConnection connection = new SocketConnection(host, port);
         try {
             connection.outputStream.writeUTF("LOGIN admin admin");
             connection.inputStream.readUTF();
+            if (replica && replicaMaxLag > 0) {
+                connection.outputStream.writeUTF("MAXLAG " + replicaMaxLag);
+                connection.inputStream.readUTF();
+            }
             connection.outputStream.writeUTF("ALL");
 
+            // big listings come in chunks, every chunk but the last one ends with a newline
             List<SocketEntry> entries = new ArrayList<>();
-            String response = connection.inputStream.readUTF();
-            if (!response.isEmpty()) {
+            String response;
+            do {
+                response = connection.inputStream.readUTF();
+                if (replica && entries.isEmpty() && response.startsWith("ERROR STALE")) return null;
                 for (String entry : response.split("\n")) {
+                    if (entry.isEmpty()) continue;
                     String[] parts = entry.split(" ");
                     entries.add(new SocketEntry(
                             parts[0],
@@ -73,7 +112,7 @@ public class SocketService {
                             Objects.equals(parts[2], "null") ? 0L : Long.parseLong(parts[2])
                     ));
                 }
-            }
+            } while (response.endsWith("\n"));
             return entries;
         } finally {
             connection.close();